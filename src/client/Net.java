@@ -3,7 +3,11 @@ package client;
 import java.io.*;
 import java.net.Socket;                       
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class Net implements Closeable {
     private final String host; private final int port;  
@@ -12,6 +16,13 @@ public class Net implements Closeable {
     private BufferedWriter out;               // ghi dữ liệu gửi tới server
     public String token = null;
 
+    // Reader thread tách dòng "EVT ..." (server đẩy) khỏi các dòng phản hồi request;
+    // phản hồi được ghép với request đang chờ theo req=<id>
+    private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong seq = new AtomicLong();
+    private volatile Consumer<String> eventListener;
+    private volatile boolean disconnected = false;
+
     public Net(String host, int port) {
         this.host = host; 
         this.port = port; 
@@ -28,21 +39,72 @@ public class Net implements Closeable {
         } catch (IOException e) { 
             throw new RuntimeException("Cannot connect server", e); 
         }
+        Thread reader = new Thread(this::readLoop, "net-reader");
+        reader.setDaemon(true);
+        reader.start();
     }
 
-    public synchronized String send(String cmdLine) {
-        String id = UUID.randomUUID().toString().substring(0,8);  // sinh id ngẫu nhiên cho request
-        String line = "REQ id="+id+";" + cmdLine;
+    private void readLoop() {
         try {
-            out.write(line); 
-            out.write("\n"); 
-            out.flush();                      // gửi dữ liệu tới server
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("EVT ")) {
+                    Consumer<String> l = eventListener;
+                    if (l != null) {
+                        try { l.accept(line); } catch (Exception e) { e.printStackTrace(); }
+                    }
+                    continue;
+                }
+                CompletableFuture<String> f = pending.remove(reqId(line));
+                if (f != null) f.complete(line);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            disconnected = true;
+            for (Map.Entry<String, CompletableFuture<String>> e : pending.entrySet()) {
+                e.getValue().complete("ERR req="+e.getKey()+";msg=disconnected");
+            }
+            pending.clear();
+        }
+    }
+
+    // Lấy giá trị req= trong phản hồi "OK req=abc; ..." / "ERR req=abc; ..."
+    private static String reqId(String line) {
+        int i = line.indexOf("req=");
+        if (i < 0) return "";
+        int j = line.indexOf(';', i);
+        return line.substring(i + 4, j < 0 ? line.length() : j).trim();
+    }
 
-            String resp = in.readLine();      // đọc phản hồi từ server
-            return resp==null? "ERR req="+id+";msg=disconnected" : resp;
+    // Nhận các dòng EVT (gọi trên reader thread; UI tự chuyển sang EDT)
+    public void setEventListener(Consumer<String> l) { this.eventListener = l; }
+
+    // Bật chế độ pipeline phía server: các request trên kết nối này được xử lý song song
+    public String enablePipelining() { return send("cmd=PIPELINE;on=true"); }
+
+    // Gửi không chờ: nhiều request có thể cùng bay, phản hồi hoàn thành future theo id
+    public CompletableFuture<String> sendAsync(String cmdLine) {
+        String id = Long.toString(seq.incrementAndGet(), 36);  // id duy nhất trên kết nối
+        CompletableFuture<String> f = new CompletableFuture<>();
+        if (disconnected) { f.complete("ERR req="+id+";msg=disconnected"); return f; }
+        pending.put(id, f);
+        if (disconnected && pending.remove(id) != null) { f.complete("ERR req="+id+";msg=disconnected"); return f; }
+        String line = "REQ id="+id+";" + cmdLine;
+        try {
+            synchronized (out) {
+                out.write(line); 
+                out.write("\n"); 
+                out.flush();                  // gửi dữ liệu tới server
+            }
         } catch (IOException e) {
-            return "ERR req="+id+";msg=io_error";
+            pending.remove(id);
+            f.complete("ERR req="+id+";msg=io_error");
         }
+        return f;
+    }
+
+    public String send(String cmdLine) {
+        return sendAsync(cmdLine).join();
     }
 
     @Override 
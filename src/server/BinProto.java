@@ -0,0 +1,163 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Giao thức nhị phân dùng chung cổng với giao thức text.
+// Client gửi 1 byte HANDSHAKE ngay khi kết nối, sau đó mọi gói là frame:
+//   [u16 len][u8 opcode][u32 reqId][body...]   (len = số byte sau 2 byte độ dài)
+// Body MOVE  : token(16 byte UUID) room(str8) idx(u8)
+// Body STATE : token(16 byte UUID) room(str8)
+// Lệnh khác  : phần "key=val;key2=val2" UTF-8 như giao thức text
+// Phản hồi   : opcode|0x80, reqId, u8 ok(0)/err(1), rồi body theo opcode;
+//   MOVE/STATE: u8 status, u8 turn, 3 byte bàn cờ (2 bit/ô), u8 end, str8 winner
+//   còn lại  : phần key=val của encodeResponse. EVT đẩy về dùng opcode OP_EVT.
+final class BinProto {
+    static final int HANDSHAKE = 0xB1;
+    static final int MAX_FRAME = 0xFFFF;
+
+    static final int OP_MOVE  = 10;
+    static final int OP_STATE = 11;
+    static final int OP_EVT   = 0xFF;
+
+    // opcode = vị trí trong mảng (0 không dùng)
+    static final String[] CMDS = {
+        null, "REGISTER", "LOGIN", "LIST", "CREATE", "JOIN", "QUICK", "READY", "UNREADY", "LEAVE",
+        "MOVE", "STATE", "ROOMINFO", "CHAT", "CHATLOG", "HISTORY", "RANK",
+        "OFFER_REPLAY", "ACCEPT_REPLAY", "DECLINE_REPLAY", "SUBSCRIBE", "UNSUBSCRIBE", "PIPELINE", "BOT", "STATS", "METRICS"
+    };
+    private static final Map<String,Integer> OPS = new HashMap<>();
+    static { for (int i = 1; i < CMDS.length; i++) OPS.put(CMDS[i], i); }
+
+    private static final String[] STATUSES = {"waiting", "ready", "playing", "closed"};
+
+    private BinProto() {}
+
+    static int opcode(String cmd) {
+        Integer op = OPS.get(cmd);
+        return op == null ? 0 : op;
+    }
+
+    // Giải mã 1 frame (buf đứng ở opcode, limit = cuối frame) thành Map request như parseLine;
+    // null nếu frame cụt/sai độ dài (transport đóng kết nối thay vì để BufferUnderflowException thoát ra)
+    static Map<String,String> decode(ByteBuffer buf) {
+        if (buf.remaining() < 5) return null;
+        int op = buf.get() & 0xFF;
+        long id = buf.getInt() & 0xFFFFFFFFL;
+        Map<String,String> m;
+        if (op == OP_MOVE || op == OP_STATE) {
+            // token 16 byte + độ dài room 1 byte, rồi room, rồi idx 1 byte (chỉ MOVE)
+            if (buf.remaining() < 17) return null;
+            int roomLen = buf.get(buf.position() + 16) & 0xFF;
+            if (buf.remaining() < 17 + roomLen + (op == OP_MOVE ? 1 : 0)) return null;
+            m = new LinkedHashMap<>();
+            m.put("_verb", "REQ");
+            m.put("token", new UUID(buf.getLong(), buf.getLong()).toString());
+            m.put("room", str8(buf));
+            if (op == OP_MOVE) m.put("idx", String.valueOf(buf.get() & 0xFF));
+        } else {
+            String text = StandardCharsets.UTF_8.decode(buf).toString();
+            m = Core.parseLine("REQ " + text);
+        }
+        m.put("id", Long.toString(id));
+        m.put("cmd", op > 0 && op < CMDS.length ? CMDS[op] : "");
+        return m;
+    }
+
+    // Mã hóa phản hồi cho request có opcode op (đã gồm 2 byte độ dài)
+    static ByteBuffer encode(int op, Map<String,String> res) {
+        boolean ok = !"ERR".equals(res.get("_status"));
+        long id;
+        try { id = Long.parseLong(res.getOrDefault("req", "0")); } catch (NumberFormatException e) { id = 0; }
+
+        // bố cục cố định chỉ cho bàn 3×3; bàn lớn (có size=) trả phần key=val như lệnh khác
+        if (ok && (op == OP_MOVE || op == OP_STATE) && !res.containsKey("size")) {
+            byte[] winner = res.getOrDefault("winner", "").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer bb = ByteBuffer.allocate(2 + 1 + 4 + 1 + 1 + 1 + 3 + 1 + 1 + winner.length);
+            bb.putShort((short) (bb.capacity() - 2));
+            bb.put((byte) (op | 0x80)).putInt((int) id).put((byte) 0);
+            bb.put((byte) statusCode(res.getOrDefault("status", op == OP_MOVE ? "playing" : "")));
+            String turn = res.getOrDefault("turn", "");
+            bb.put((byte) (turn.isEmpty() ? ' ' : turn.charAt(0)));
+            int packed = packBoard(res.getOrDefault("state", ""));
+            bb.put((byte) (packed >>> 16)).put((byte) (packed >>> 8)).put((byte) packed);
+            String end = res.getOrDefault("end", "");
+            bb.put((byte) ("win".equals(end) ? 1 : "draw".equals(end) ? 2 : 0));
+            bb.put((byte) winner.length).put(winner);
+            return bb.flip();
+        }
+
+        String text = Core.encodeResponse(res);
+        int sp = text.indexOf(' ');
+        byte[] body = (sp < 0 ? "" : text.substring(sp + 1)).getBytes(StandardCharsets.UTF_8);
+        return frame(op | 0x80, id, ok ? 0 : 1, body);
+    }
+
+    // Dòng "EVT ..." của Core -> frame OP_EVT (reqId = 0)
+    static ByteBuffer encodeEvent(String line) {
+        int sp = line.indexOf(' ');
+        byte[] body = (sp < 0 ? "" : line.substring(sp + 1)).getBytes(StandardCharsets.UTF_8);
+        return frame(OP_EVT, 0, 0, body);
+    }
+
+    private static ByteBuffer frame(int op, long id, int status, byte[] body) {
+        int len = Math.min(body.length, MAX_FRAME - 6);
+        ByteBuffer bb = ByteBuffer.allocate(2 + 6 + len);
+        bb.putShort((short) (6 + len));
+        bb.put((byte) op).putInt((int) id).put((byte) status).put(body, 0, len);
+        return bb.flip();
+    }
+
+    // 9 ô x 2 bit: 0 trống, 1 X, 2 O; ô 0 ở 2 bit cao nhất của 18 bit
+    static int packBoard(String state) {
+        int v = 0;
+        for (int i = 0; i < 9; i++) {
+            char c = i < state.length() ? state.charAt(i) : ' ';
+            v = (v << 2) | (c == 'X' ? 1 : c == 'O' ? 2 : 0);
+        }
+        return v;
+    }
+
+    private static int statusCode(String status) {
+        for (int i = 0; i < STATUSES.length; i++) if (STATUSES[i].equals(status)) return i;
+        return 0xFF;
+    }
+
+    private static String str8(ByteBuffer buf) {
+        int n = buf.get() & 0xFF;
+        byte[] b = new byte[n];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // Kiểm tra nhanh bộ giải mã với frame hỏng (không cần server):  java -cp bin server.BinProto check
+    public static void main(String[] args) {
+        if (args.length < 1 || !"check".equals(args[0])) { System.out.println("usage: BinProto check"); return; }
+        byte[] room = "R-ABCD".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer ok = ByteBuffer.allocate(5 + 16 + 1 + room.length + 1);
+        ok.put((byte) OP_MOVE).putInt(7).putLong(1).putLong(2).put((byte) room.length).put(room).put((byte) 4).flip();
+        int bad = 0;
+        Map<String,String> m = decode(ok.duplicate());
+        if (m == null || !"4".equals(m.get("idx")) || !"R-ABCD".equals(m.get("room"))) { bad++; System.out.println("FAIL full MOVE: " + m); }
+        // mọi độ dài cụt của frame MOVE/STATE hợp lệ đều phải trả null, không ném ngoại lệ
+        for (int op : new int[]{OP_MOVE, OP_STATE}) {
+            ok.put(0, (byte) op);
+            int full = op == OP_MOVE ? ok.limit() : ok.limit() - 1;
+            for (int len = 0; len < full; len++) {
+                try {
+                    if (decode(ByteBuffer.wrap(ok.array(), 0, len)) != null) { bad++; System.out.println("FAIL op " + op + " len " + len + ": decoded"); }
+                } catch (RuntimeException e) { bad++; System.out.println("FAIL op " + op + " len " + len + ": " + e); }
+            }
+        }
+        // room dài hơn phần còn lại của frame
+        ByteBuffer lying = ByteBuffer.allocate(5 + 16 + 1 + 2);
+        lying.put((byte) OP_MOVE).putInt(1).putLong(1).putLong(2).put((byte) 200).put((byte) 'R').put((byte) 1).flip();
+        if (decode(lying) != null) { bad++; System.out.println("FAIL str8 past end: decoded"); }
+        System.out.println(bad == 0 ? "ok" : bad + " failed");
+        if (bad > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,205 @@
+package server;
+
+// Bàn cờ N×N, thắng khi có k quân liên tiếp (3×3 k=3 là cờ ca-rô cổ điển, 15×15 k=5 là Caro).
+// Ô idx nằm ở hàng idx/size, cột idx%size; mỗi bên giữ 1 dãy bit long[] nên bàn 19×19 chỉ tốn 2×6 long.
+// Chỉ được dùng trong hộp thư của phòng sở hữu nó (không an toàn luồng).
+final class Board {
+    static final int MIN_SIZE = 3, MAX_SIZE = 19;
+
+    // 8 đường thắng của bàn 3×3 (mask 9 bit): 3 hàng, 3 cột, 2 đường chéo
+    static final int[] WIN = {0x007, 0x038, 0x1C0, 0x049, 0x092, 0x124, 0x111, 0x054};
+    // 4 hướng cần xét qua quân vừa đặt: ngang, dọc, chéo xuôi, chéo ngược
+    private static final int[] DR = {0, 1, 1, 1}, DC = {1, 0, 1, -1};
+
+    final int size, k, cells;
+    private final long[] xs, os;
+    // Lịch sử nước đi: mỗi nước 4 bit (bàn <= 16 ô) hoặc 16 bit, nước đầu ở bit thấp nhất
+    private final long[] moves;
+    private final int bits;
+    int ply;
+    int last = -1;
+    // Chuỗi trạng thái cho client text, tạo khi cần và giữ tới lần đổi bàn kế tiếp
+    private String text;
+    // Chuỗi state 3×3 theo mã cơ số 3 của bàn (3^9 thế cờ), dùng chung mọi phòng nên MOVE khỏi tạo chuỗi mới;
+    // ghi đua giữa 2 hộp thư chỉ tạo 2 String bằng nhau (String bất biến, công bố an toàn qua field final)
+    private static final String[] CLASSIC_TEXT = new String[19683];
+
+    Board(int size, int k) {
+        this.size = size;
+        this.k = k;
+        this.cells = size * size;
+        this.xs = new long[(cells + 63) >>> 6];
+        this.os = new long[xs.length];
+        this.bits = cells <= 16 ? 4 : 16;
+        this.moves = new long[(cells * bits + 63) >>> 6];
+    }
+
+    // Bàn 3×3 cổ điển: giữ định dạng state 9 ký tự và dùng bảng WIN
+    boolean classic() { return size == 3 && k == 3; }
+
+    void reset() {
+        java.util.Arrays.fill(xs, 0);
+        java.util.Arrays.fill(os, 0);
+        java.util.Arrays.fill(moves, 0);
+        ply = 0;
+        last = -1;
+        text = null;
+    }
+
+    boolean occupied(int idx) { return bit(xs, idx) || bit(os, idx); }
+
+    char at(int idx) { return bit(xs, idx) ? 'X' : bit(os, idx) ? 'O' : ' '; }
+
+    void place(int idx, char p) {
+        long[] b = p == 'X' ? xs : os;
+        b[idx >>> 6] |= 1L << idx;
+        int off = ply * bits;
+        moves[off >>> 6] |= (long) idx << off;
+        ply++;
+        last = idx;
+        text = null;
+    }
+
+    // Hết ô trống (đếm bit bằng popcount)
+    boolean full() {
+        int n = 0;
+        for (int i = 0; i < xs.length; i++) n += Long.bitCount(xs[i] | os[i]);
+        return n == cells;
+    }
+
+    // p vừa đặt quân ở idx có thắng không: 3×3 so với bảng WIN, bàn lớn chỉ đi 4 hướng qua ô idx
+    boolean wins(char p, int idx) {
+        long[] b = p == 'X' ? xs : os;
+        if (classic()) {
+            int m = (int) b[0];
+            for (int w : WIN) if ((m & w) == w) return true;
+            return false;
+        }
+        int r = idx / size, c = idx % size;
+        for (int d = 0; d < 4; d++) {
+            if (1 + run(b, r, c, DR[d], DC[d]) + run(b, r, c, -DR[d], -DC[d]) >= k) return true;
+        }
+        return false;
+    }
+
+    // Số quân liên tiếp của b tính từ (r, c) theo hướng (dr, dc), không kể chính ô đó
+    private int run(long[] b, int r, int c, int dr, int dc) {
+        int n = 0;
+        for (r += dr, c += dc; n < k && r >= 0 && r < size && c >= 0 && c < size && bit(b, r * size + c); r += dr, c += dc) n++;
+        return n;
+    }
+
+    // Mask 9 bit của bàn 3×3 (cho Bot tra bảng)
+    int xMask() { return (int) xs[0]; }
+    int oMask() { return (int) os[0]; }
+
+    int move(int i) {
+        int off = i * bits;
+        return (int) (moves[off >>> 6] >>> off) & ((1 << bits) - 1);
+    }
+
+    // "a,b,c" theo thứ tự đi, như trường moves= trong events
+    String moveList() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ply; i++) { if (i > 0) sb.append(','); sb.append(move(i)); }
+        return sb.toString();
+    }
+
+    // 3×3: 9 ký tự 'X'/'O'/' ' như cũ. Bàn lớn: mã hóa độ dài loạt "<số lượng><ký tự>"
+    // với '-' là ô trống và bỏ số khi loạt dài 1, vd bàn 15×15 có 1 quân X ở giữa: "112-X112-"
+    String text() {
+        String s = text;
+        if (s != null) return s;
+        if (classic()) {
+            int code = 0;
+            for (int i = 8; i >= 0; i--) { char ch = at(i); code = code * 3 + (ch == 'X' ? 1 : ch == 'O' ? 2 : 0); }
+            s = CLASSIC_TEXT[code];
+            if (s == null) {
+                char[] c = new char[9];
+                for (int i = 0; i < 9; i++) c[i] = at(i);
+                CLASSIC_TEXT[code] = s = new String(c);
+            }
+        } else {
+            StringBuilder sb = new StringBuilder();
+            int i = 0;
+            while (i < cells) {
+                char ch = at(i);
+                int j = i + 1;
+                while (j < cells && at(j) == ch) j++;
+                if (j - i > 1) sb.append(j - i);
+                sb.append(ch == ' ' ? '-' : ch);
+                i = j;
+            }
+            s = sb.toString();
+        }
+        text = s;
+        return s;
+    }
+
+    private static boolean bit(long[] b, int idx) { return (b[idx >>> 6] & (1L << idx)) != 0; }
+
+    // So sánh đặt quân + xét thắng/hòa của Board với bàn char[9] cũ (int[][] mỗi lần winner(), List<Integer> moves)
+    // trên cùng các ván ngẫu nhiên; in ns và byte cấp phát mỗi nước:  java -cp bin server.Board bench [số ván]
+    public static void main(String[] args) {
+        if (args.length < 1 || !"bench".equals(args[0])) { System.out.println("usage: Board bench [games]"); return; }
+        int games = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        java.util.Random rnd = new java.util.Random(7);
+        int[][] orders = new int[4096][9];
+        for (int[] o : orders) {
+            for (int i = 0; i < 9; i++) o[i] = i;
+            for (int i = 8; i > 0; i--) { int j = rnd.nextInt(i + 1), t = o[i]; o[i] = o[j]; o[j] = t; }
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().threadId();
+        char[] old = new char[9];
+        java.util.List<Integer> oldMoves = new java.util.ArrayList<>();
+        Board b = new Board(3, 3);
+        long sink = 0;
+        for (int round = 0; round < 2; round++) { // vòng 1 để JIT nóng máy, in kết quả vòng 2
+            long plies = 0, a0 = mx.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+            for (int g = 0; g < games; g++) {
+                int[] o = orders[g & 4095];
+                java.util.Arrays.fill(old, ' ');
+                oldMoves.clear();
+                char turn = 'X';
+                for (int idx : o) {
+                    if (old[idx] != ' ') continue;
+                    old[idx] = turn;
+                    oldMoves.add(idx);
+                    plies++;
+                    if (oldWinner(old) != ' ' || oldFull(old)) break;
+                    turn = turn == 'X' ? 'O' : 'X';
+                }
+                sink += oldMoves.size();
+            }
+            long a1 = mx.getThreadAllocatedBytes(tid), t1 = System.nanoTime();
+            for (int g = 0; g < games; g++) {
+                int[] o = orders[g & 4095];
+                b.reset();
+                char turn = 'X';
+                for (int idx : o) {
+                    if (b.occupied(idx)) continue;
+                    b.place(idx, turn);
+                    if (b.wins(turn, idx) || b.full()) break;
+                    turn = turn == 'X' ? 'O' : 'X';
+                }
+                sink += b.ply;
+            }
+            long a2 = mx.getThreadAllocatedBytes(tid), t2 = System.nanoTime();
+            if (round == 1) {
+                System.out.printf("%d games, %d moves: char[] %.1f ns/move %.1f B/move, bitboard %.1f ns/move %.1f B/move [%d]%n",
+                        games, plies, (t1 - t0) / (double) plies, (a1 - a0) / (double) plies,
+                        (t2 - t1) / (double) plies, (a2 - a1) / (double) plies, sink & 1);
+            }
+        }
+    }
+
+    // Bàn cũ của Core.Room, giữ nguyên để so sánh
+    private static char oldWinner(char[] board) {
+        int[][] w = {{0,1,2},{3,4,5},{6,7,8},{0,3,6},{1,4,7},{2,5,8},{0,4,8},{2,4,6}};
+        for (int[] a : w) { if (board[a[0]] != ' ' && board[a[0]] == board[a[1]] && board[a[1]] == board[a[2]]) return board[a[0]]; }
+        return ' ';
+    }
+
+    private static boolean oldFull(char[] board) { for (char c : board) if (c == ' ') return false; return true; }
+}
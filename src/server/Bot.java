@@ -0,0 +1,90 @@
+package server;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Đối thủ máy chơi hoàn hảo: tính minimax một lần cho mọi thế cờ hợp lệ lúc khởi động,
+// mỗi nước của bot sau đó chỉ là tra bảng theo mã cơ số 3 của bàn cờ (ô trống 0, X 1, O 2).
+final class Bot {
+    // Tên người chơi của bot; có '@' nên không trùng được user đăng ký (validUser chỉ cho [a-zA-Z0-9_])
+    static final String NAME = "@bot";
+
+    private static final int POSITIONS = 19683; // 3^9
+    private static final byte UNKNOWN = Byte.MIN_VALUE;
+
+    // Mã cơ số 3 của 1 mask 9 bit khi mỗi bit đặt = 1: mã bàn cờ = B3[x] + 2*B3[o]
+    private static final int[] B3 = new int[512];
+    // Với bên tới lượt: điểm (>0 thắng, nhanh hơn thì lớn hơn; <0 thua) và nước tốt nhất (-1 nếu hết cờ)
+    private static final byte[] SCORE = new byte[POSITIONS];
+    private static final byte[] BEST = new byte[POSITIONS];
+
+    static {
+        for (int m = 0; m < 512; m++) {
+            int v = 0;
+            for (int i = 8; i >= 0; i--) v = v * 3 + ((m >>> i) & 1);
+            B3[m] = v;
+        }
+        java.util.Arrays.fill(SCORE, UNKNOWN);
+        solve(0, 0);
+    }
+
+    private Bot() {}
+
+    // Gọi lúc khởi động để dựng bảng ngay, không để request đầu tiên phải chờ
+    static void init() {}
+
+    // Tỉ lệ đi ngẫu nhiên theo mức độ: easy / normal / hard (mặc định lấy từ -Dbot.level)
+    static double blunderRate(String level) {
+        if (level == null || level.isBlank()) level = System.getProperty("bot.level", "hard");
+        return switch (level) {
+            case "easy"   -> 0.5;
+            case "normal" -> 0.2;
+            default       -> 0.0;
+        };
+    }
+
+    // Nước đi cho bên tới lượt trên bàn (x, o); với xác suất blunder đi 1 ô trống ngẫu nhiên
+    static int move(int x, int o, double blunder) {
+        int free = ~(x | o) & 0x1FF;
+        if (free == 0) return -1;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        if (blunder > 0 && rnd.nextDouble() < blunder) {
+            int k = rnd.nextInt(Integer.bitCount(free));
+            while (k-- > 0) free &= free - 1;
+            return Integer.numberOfTrailingZeros(free);
+        }
+        return BEST[B3[x] + 2 * B3[o]];
+    }
+
+    // Negamax có nhớ; x là bên vừa đi hay tới lượt được suy ra từ số quân
+    private static int solve(int x, int o) {
+        int key = B3[x] + 2 * B3[o];
+        if (SCORE[key] != UNKNOWN) return SCORE[key];
+
+        boolean xToMove = Integer.bitCount(x) == Integer.bitCount(o);
+        int me = xToMove ? x : o, other = xToMove ? o : x;
+        int free = ~(x | o) & 0x1FF;
+        int best = -1, bestScore = Integer.MIN_VALUE;
+
+        if (!wins(other) && free != 0) {
+            for (int f = free; f != 0; f &= f - 1) {
+                int i = Integer.numberOfTrailingZeros(f);
+                int next = me | (1 << i);
+                int s;
+                if (wins(next)) s = Integer.bitCount(free);            // thắng ngay: càng sớm điểm càng cao
+                else if (Integer.bitCount(free) == 1) s = 0;          // ô cuối cùng: hòa
+                else s = -(xToMove ? solve(next, o) : solve(x, next));
+                if (s > bestScore) { bestScore = s; best = i; }
+            }
+        } else {
+            bestScore = 0;
+        }
+        SCORE[key] = (byte) bestScore;
+        BEST[key] = (byte) best;
+        return bestScore;
+    }
+
+    private static boolean wins(int m) {
+        for (int w : Board.WIN) if ((m & w) == w) return true;
+        return false;
+    }
+}
@@ -3,39 +3,78 @@ package server;
 import java.net.Socket;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Core {
     // Lưu trữ phụ thuộc ngoài: đọc/ghi users, lịch sử, leaderboard, chat...
     private final Store store;
 
-    // Bản đồ token -> user; concurrent để an toàn luồng giữa nhiều Handler
-    private final Map<String, String> tokenToUser = new ConcurrentHashMap<>();
+    // Phiên đăng nhập token -> user (hết hạn, giới hạn số phiên mỗi user); tra không khóa giữa nhiều Handler
+    private final SessionManager sessions = new SessionManager();
 
     // Danh sách phòng đang tồn tại (id -> Room); concurrent để multi-client
     private final Map<String, Room> rooms = new ConcurrentHashMap<>();
 
-    // Hàng đợi ghép nhanh (quick match queue) theo thứ tự vào hàng
-    private final ArrayDeque<String> quickQ = new ArrayDeque<>();
-
-    public Core(Store store) { this.store = store; }
+    // Hàng đợi ghép nhanh (quick match queue) theo thứ tự vào hàng; mỗi user tối đa 1 chỗ
+    private final LinkedHashSet<String> quickQ = new LinkedHashSet<>();
+
+    // user -> phòng đang ngồi (host/guest); rớt mạng và kiểm tra "đã ở phòng khác" tra O(1) thay vì duyệt rooms.
+    // Phòng đã closed vẫn giữ người ngồi (chờ replay) nhưng không cản user vào phòng mới.
+    private final Map<String, String> userRoom = new ConcurrentHashMap<>();
+
+    // Ảnh chụp sảnh có version cho LIST (chỉ dựng lại khi 1 dòng phòng thật sự đổi)
+    private final Lobby lobby = new Lobby();
+
+    // Đăng ký nhận sự kiện đẩy (SUBSCRIBE): room -> các kết nối, và kết nối -> room đang theo dõi
+    private final Map<String, Set<Sink>> subs = new ConcurrentHashMap<>();
+    private final Map<Sink, String> sinkRoom = new ConcurrentHashMap<>();
+
+    // Kênh đẩy dòng "EVT ..." không yêu cầu về 1 kết nối (Handler / NioServer cài đặt)
+    public interface Sink { void push(String line); }
+
+    // Pool dùng chung: request ở chế độ pipeline và hộp thư (Mailbox) của các phòng
+    private final ExecutorService workers = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "core-worker");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Dọn phòng bỏ quên (vd 2 người đóng cửa sổ sau trận mà không LEAVE): mỗi -Droom.reapSec giây xóa phòng
+    // không có lệnh nào quá hạn theo trạng thái: closed -Droom.closedTtlSec, closed còn lời mời chơi lại chờ trả lời
+    // -Droom.replayTtlSec, waiting -Droom.waitingTtlSec. Phòng đang playing không bị dọn (rớt mạng đã xử thua),
+    // phòng chờ còn kết nối SUBSCRIBE cũng không (host chờ qua EVT thì không gửi lệnh nào).
+    private static final long CLOSED_TTL_MS  = TimeUnit.SECONDS.toMillis(Long.getLong("room.closedTtlSec", 300));
+    private static final long REPLAY_TTL_MS  = TimeUnit.SECONDS.toMillis(Long.getLong("room.replayTtlSec", 600));
+    private static final long WAITING_TTL_MS = TimeUnit.SECONDS.toMillis(Long.getLong("room.waitingTtlSec", 1800));
+    private final AtomicLong reaped = new AtomicLong();
+
+    public Core(Store store) {
+        this.store = store;
+        Bot.init(); // dựng bảng nước đi của bot lúc khởi động
+        long every = Math.max(1, Long.getLong("room.reapSec", 30));
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "room-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleWithFixedDelay(this::reapRooms, every, every, TimeUnit.SECONDS);
+    }
 
     // Parser giao thức dạng text line: "REQ id=...;cmd=...;token=...;..."
     // Trả về Map<String,String> với khóa đặc biệt _verb là từ đầu dòng (REQ)
+    // (transport dùng thẳng ReqParser trên byte để khỏi tạo Map/String cho mỗi field)
     public static Map<String,String> parseLine(String line) {
-        Map<String,String> m = new LinkedHashMap<>();
-        String[] parts = line.split("\\s+", 2);
-        m.put("_verb", parts[0]); 
-        if (parts.length == 2) {
-            String[] kvs = parts[1].split(";");
-            for (String kv : kvs) {
-                if (kv.isBlank()) continue;
-                int i = kv.indexOf('=');
-                if (i < 0) continue;
-                m.put(kv.substring(0, i), unesc(kv.substring(i + 1)));
-            }
-        }
-        return m;
+        byte[] b = line.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        return new LinkedHashMap<>(new ReqParser().reset(b, 0, b.length));
     }
 
     // Mã hóa Map phản hồi về chuỗi text: "OK key=val;key2=val2"
@@ -53,9 +92,71 @@ public class Core {
     }
 
     // Điểm vào xử lý mọi request text: parse -> switch theo cmd -> build resp
-    public Map<String,String> handle(String line) {
-        Map<String,String> req = parseLine(line);
-        Map<String,String> resp = new LinkedHashMap<>();
+    public Map<String,String> handle(String line) { return handle(line, null); }
+
+    // Chế độ pipeline: xử lý trên pool, phản hồi (có req=) trả về khi xong, không theo thứ tự gửi
+    // (lệnh của phòng vẫn xếp vào hộp thư của phòng nên giữ thứ tự trong từng phòng)
+    public CompletableFuture<Map<String,String>> handleAsync(Map<String,String> req, Sink sink) {
+        Room r = roomOf(req);
+        if (r != null) return r.mailbox.ask(() -> exec(req, new LinkedHashMap<>(), sink));
+        return CompletableFuture.supplyAsync(() -> exec(req, new LinkedHashMap<>(), sink), workers);
+    }
+
+    // Như trên, kèm kết nối gửi request để SUBSCRIBE có chỗ đẩy sự kiện về
+    public Map<String,String> handle(String line, Sink sink) {
+        return handle(parseLine(line), sink);
+    }
+
+    // Request đã parse sẵn (transport text đã parse để lấy token, hoặc từ frame nhị phân)
+    public Map<String,String> handle(Map<String,String> req, Sink sink) {
+        return handle(req, new LinkedHashMap<>(), sink);
+    }
+
+    // resp do transport cấp (đã clear) để dùng lại giữa các request trên cùng kết nối
+    public Map<String,String> handle(Map<String,String> req, Map<String,String> resp, Sink sink) {
+        Room r = roomOf(req);
+        if (r == null) return exec(req, resp, sink);
+        if (r.mailbox.tryEnter()) {
+            try { return exec(req, resp, sink); } finally { r.mailbox.exit(); }
+        }
+        return r.mailbox.ask(() -> exec(ReqParser.copyOf(req), resp, sink)).join();
+    }
+
+    // Như handle nhưng không chờ khi phòng đang bận: trả future hoàn tất sau (event-loop NIO không được chặn).
+    // resp chỉ được dùng lại sau khi future xong.
+    public CompletableFuture<Map<String,String>> submit(Map<String,String> req, Map<String,String> resp, Sink sink) {
+        // STATS quét cả log, REGISTER chờ fsync journal, RANK lúc bảng xếp hạng còn đang dựng:
+        // chạy trên pool, không giữ event-loop
+        String cmd = req.get("cmd");
+        if ("STATS".equals(cmd) || "REGISTER".equals(cmd) || "RANK".equals(cmd) && !store.rankingReady()) {
+            Map<String,String> copy = ReqParser.copyOf(req);
+            return CompletableFuture.supplyAsync(() -> exec(copy, resp, sink), workers);
+        }
+        Room r = roomOf(req);
+        if (r == null) return CompletableFuture.completedFuture(exec(req, resp, sink));
+        if (r.mailbox.tryEnter()) {
+            try { exec(req, resp, sink); } finally { r.mailbox.exit(); }
+            return CompletableFuture.completedFuture(resp);
+        }
+        // req có thể trỏ vào bộ đệm đọc của kết nối -> copy trước khi giao cho luồng khác
+        Map<String,String> copy = ReqParser.copyOf(req);
+        return r.mailbox.ask(() -> exec(copy, resp, sink));
+    }
+
+    // Phòng mà lệnh đọc/ghi trạng thái (null nếu lệnh không gắn với phòng hoặc phòng không tồn tại)
+    private Room roomOf(Map<String,String> req) {
+        switch (req.getOrDefault("cmd","")) {
+            case "JOIN", "READY", "UNREADY", "LEAVE", "MOVE", "STATE", "ROOMINFO", "CHAT",
+                 "OFFER_REPLAY", "ACCEPT_REPLAY", "DECLINE_REPLAY" -> {
+                String id = req.get("room");
+                return id == null ? null : rooms.get(id);
+            }
+            default -> { return null; }
+        }
+    }
+
+    // Thực thi 1 request; lệnh của phòng luôn được gọi từ trong hộp thư của phòng đó
+    private Map<String,String> exec(Map<String,String> req, Map<String,String> resp, Sink sink) {
         resp.put("_status","OK");
         resp.put("req", req.getOrDefault("id",""));
 
@@ -67,10 +168,11 @@ public class Core {
                 case "REGISTER" -> doRegister(req, resp);
                 case "LOGIN"    -> doLogin(req, resp);
 
-                case "LIST"     -> doListRooms(resp);
+                case "LIST"     -> doListRooms(req, resp);
                 case "CREATE"   -> doCreateRoom(req, resp);
                 case "JOIN"     -> doJoin(req, resp);
                 case "QUICK"    -> doQuick(req, resp);
+                case "BOT"      -> doBot(req, resp);
 
                 case "READY"    -> doReady(req, resp, true);
                 case "UNREADY"  -> doReady(req, resp, false);
@@ -83,8 +185,14 @@ public class Core {
                 case "CHAT"     -> doChat(req, resp);
                 case "CHATLOG"  -> doChatLog(req, resp);
 
+                // Nhận sự kiện đẩy của phòng thay vì poll STATE/CHATLOG
+                case "SUBSCRIBE"   -> doSubscribe(req, resp, sink);
+                case "UNSUBSCRIBE" -> { if (sink != null) unsubscribe(sink); resp.put("subscribed","false"); }
+
                 case "HISTORY"  -> doHistory(req, resp);
-                case "RANK"     -> doRank(resp);
+                case "RANK"     -> doRank(req, resp);
+                case "STATS"    -> doStats(req, resp);
+                case "METRICS"  -> doMetrics(resp);
 
                 // Cơ chế rủ chơi lại (replay) sau khi trận đóng
                 case "OFFER_REPLAY"   -> doOfferReplay(req, resp);
@@ -97,27 +205,46 @@ public class Core {
             ex.printStackTrace();
             err(resp,"exception");
         }
+        // lệnh của phòng (cả STATE/ROOMINFO, đang chạy trong hộp thư của phòng) tính là phòng còn người dùng
+        Room r = roomOf(req);
+        if (r != null) {
+            r.lastActivity = System.currentTimeMillis();
+            relist(r);
+        } else if ("CREATE".equals(cmd) || "QUICK".equals(cmd) || "BOT".equals(cmd)) {
+            // phòng vừa tạo: lệnh này chạy ngoài hộp thư (JOIN có thể đã tới phòng), nên đưa lên sảnh qua hộp thư;
+            // hộp thư rảnh thì chạy ngay để LIST ngay sau CREATE đã thấy phòng
+            Room created = rooms.get(resp.getOrDefault("room", ""));
+            if (created != null) {
+                Runnable list = () -> relist(created);
+                if (!created.mailbox.tryRun(list)) created.mailbox.tell(list);
+            }
+        }
         return resp;
     }
 
     // Hook cũ (không dùng) khi socket ngắt
     public void onDisconnect(Socket s) { /* no-op */ }
 
+    // Kết nối đóng: bỏ mọi đăng ký sự kiện của nó
+    public void onDisconnectSink(Sink sink) {
+        if (sink != null) unsubscribe(sink);
+    }
+
     // Khi biết token cuối cùng của socket bị rớt: xử thua nếu đang chơi
     public void onDisconnectToken(String token) {
         if (token == null || token.isBlank()) return;
-        String u = tokenToUser.get(token);
+        String u = sessions.user(token);
         forfeitIfPlaying(u);
     }
 
-    // Đăng ký người dùng mới: validate username, hash password, ghi Store
+    // Đăng ký người dùng mới: validate username, hash password, ghi Store.
+    // Tài khoản mất sau khi đã báo OK là không chấp nhận được nên chờ journal fsync (các lệnh khác chỉ chờ bộ nhớ)
     private void doRegister(Map<String,String> req, Map<String,String> resp) {
         String u = req.get("user"), p = req.get("pass");
         if (!validUser(u) || p==null || p.length()<3) { err(resp,"invalid_input"); return; }
-        synchronized (store) {
-            if (store.userExists(u)) { err(resp,"user_exists"); return; }
-            store.addUser(u, hash(p));
-        }
+        CompletableFuture<Void> done = store.register(u, hash(p), Store.Durability.DISK);
+        if (done == null) { err(resp,"user_exists"); return; }
+        try { done.join(); } catch (CompletionException e) { err(resp,"io_error"); return; }
         resp.put("msg","registered");
     }
 
@@ -125,9 +252,7 @@ public class Core {
     private void doLogin(Map<String,String> req, Map<String,String> resp) {
         String u = req.get("user"), p = req.get("pass");
         if (!store.checkLogin(u, hash(p))) { err(resp,"bad_credentials"); return; }
-        String t = UUID.randomUUID().toString();
-        tokenToUser.put(t, u);
-        resp.put("token", t);
+        resp.put("token", sessions.create(u));
         int[] wl = store.getWL(u);
         resp.put("wins", ""+wl[0]); resp.put("losses",""+wl[1]); resp.put("draws",""+wl[2]);
     }
@@ -135,30 +260,65 @@ public class Core {
     // Lấy user từ token trong request; nếu thiếu thì trả unauthorized
     private String userFromToken(Map<String,String> req, Map<String,String> resp) {
         String t = req.get("token");
-        String u = tokenToUser.get(t);
+        String u = sessions.user(t);
         if (u==null) { err(resp,"unauthorized"); return null; }
         return u;
     }
 
-    // Trả danh sách phòng ở trạng thái hiển thị được (waiting/ready/playing)
-    private void doListRooms(Map<String,String> resp) {
-        StringBuilder sb = new StringBuilder();
-        for (Room r : rooms.values()) {
-            if (!r.status.equals("waiting") && !r.status.equals("ready") && !r.status.equals("playing")) continue;
-            sb.append(r.id).append(",").append(r.host==null?"":r.host).append(",")
-              .append(r.guest==null?"":r.guest).append(",").append(r.status).append("|");
+    // Trả danh sách phòng ở trạng thái hiển thị được (waiting/ready/playing) từ ảnh chụp sảnh dựng sẵn, kèm version.
+    // since=V: unchanged=true nếu sảnh chưa đổi; không thì delta added/removed/updated (removed chỉ có mã phòng),
+    // nhật ký không còn tới V thì trả cả danh sách như LIST thường.
+    // LIST không bắt buộc token; có token thì gia hạn phiên để người chỉ ngồi ở sảnh (poll LIST) không bị hết hạn
+    private void doListRooms(Map<String,String> req, Map<String,String> resp) {
+        sessions.user(req.get("token"));
+        String since = req.get("since");
+        if (since != null) {
+            long v;
+            try { v = Long.parseLong(since); } catch (NumberFormatException e) { v = -1; }
+            if (v == lobby.version()) { resp.put("version", since); resp.put("unchanged","true"); return; }
+            Lobby.Delta d = lobby.since(v);
+            if (d != null) {
+                resp.put("version", String.valueOf(d.version));
+                resp.put("added", d.added);
+                resp.put("removed", d.removed);
+                resp.put("updated", d.updated);
+                return;
+            }
         }
-        resp.put("rooms", sb.toString());
+        Lobby.Snapshot s = lobby.current();
+        resp.put("rooms", s.rooms);
+        resp.put("version", String.valueOf(s.version));
+    }
+
+    // Cập nhật dòng sảnh của phòng theo host/guest/status hiện tại. Chạy trong hộp thư của phòng (hoặc lúc vừa tạo,
+    // trước khi ai biết mã phòng) nên các lần gọi của 1 phòng không chen nhau; so tham chiếu để MOVE không tốn gì.
+    private void relist(Room r) {
+        String h = r.host, g = r.guest, s = r.status;
+        if (h == r.listedHost && g == r.listedGuest && s == r.listedStatus) return;
+        r.listedHost = h; r.listedGuest = g; r.listedStatus = s;
+        if (rooms.get(r.id) != r) return; // đã bị xóa: removeRoom đã gỡ khỏi sảnh
+        boolean shown = "waiting".equals(s) || "ready".equals(s) || "playing".equals(s);
+        lobby.put(r.id, shown ? r.id + "," + (h==null?"":h) + "," + (g==null?"":g) + "," + s : null);
     }
 
     // Tạo phòng mới với host là user hiện tại; ghi log Store
+    // size=N (3..19) và k= số quân liên tiếp để thắng (mặc định min(N,5)) cho bàn lớn kiểu Caro
     private void doCreateRoom(Map<String,String> req, Map<String,String> resp) {
         String u = userFromToken(req, resp); if (u==null) return;
+        int size, k;
+        try {
+            size = Integer.parseInt(req.getOrDefault("size","3"));
+            k = Integer.parseInt(req.getOrDefault("k", String.valueOf(Math.min(size, 5))));
+        } catch (NumberFormatException e) { err(resp,"bad_size"); return; }
+        if (size<Board.MIN_SIZE || size>Board.MAX_SIZE || k<3 || k>size) { err(resp,"bad_size"); return; }
+
         String id = "R-" + UUID.randomUUID().toString().substring(0,4).toUpperCase();
-        Room r = new Room(id, u);
+        if (!enter(u, id)) { err(resp,"already_in_room"); return; }
+        Room r = new Room(id, u, workers, size, k);
         rooms.put(id, r);
         store.appendRoomEvent(id, u, "", "waiting");
         resp.put("room", id);
+        if (!r.board.classic()) { resp.put("size", String.valueOf(size)); resp.put("k", String.valueOf(k)); }
     }
 
     // Tham gia phòng đang waiting; khi đủ 2 người -> bắt đầu playing, X đi trước
@@ -168,46 +328,93 @@ public class Core {
         if (r==null) { err(resp,"no_room"); return; }
         if (!"waiting".equals(r.status)) { err(resp,"room_unavailable"); return; }
         if (u.equals(r.host)) { err(resp,"cannot_join_own_room"); return; }
+        if (!enter(u, r.id)) { err(resp,"already_in_room"); return; }
 
         r.guest = u;
         r.hostReady = r.guestReady = true;
         r.status = "playing";
-        r.resetBoard();
+        r.board.reset();
         r.turn = 'X';
 
         store.appendRoomEvent(r.id, r.host, r.guest, "playing");
+        publish(r, "join");
         resp.put("room", r.id);
         resp.put("start","true");
         resp.put("turn","X");
-        resp.put("state", new String(r.board));
+        putState(resp, r);
     }
 
     // Ghép nhanh: nếu hàng đợi có người -> tạo phòng và start ngay, nếu không thì xếp hàng
+    // (mode=bot: không có ai đang chờ thì đấu với máy luôn thay vì xếp hàng)
     private void doQuick(Map<String,String> req, Map<String,String> resp) {
         String u = userFromToken(req, resp); if (u==null) return;
-        if (!quickQ.isEmpty()) {
-            String other = quickQ.poll();
-            if (u.equals(other)) { quickQ.offer(u); resp.put("msg","queued"); return; }
-
-            String id = "R-" + UUID.randomUUID().toString().substring(0,4).toUpperCase();
-            Room r = new Room(id, other);
-            r.guest = u;
-            r.hostReady = r.guestReady = true;
-            r.status = "playing";
-            r.resetBoard();
-            r.turn = 'X';
-
-            rooms.put(id, r);
-            store.appendRoomEvent(id, r.host, r.guest, "playing");
+        boolean bot = "bot".equals(req.get("mode"));
+        if (inActiveRoom(u)) { err(resp,"already_in_room"); return; }
+        String other = null;
+        synchronized (quickQ) {
+            // người đầu hàng khác u; bỏ qua người đã kịp vào phòng khác (enter đã gỡ họ, chỉ sót khi chạy đua)
+            for (Iterator<String> it = quickQ.iterator(); other == null && it.hasNext(); ) {
+                String c = it.next();
+                if (c.equals(u)) continue;
+                it.remove();
+                if (!inActiveRoom(c)) other = c;
+            }
+            if (other == null && !bot) { quickQ.add(u); resp.put("msg","queued"); return; }
+            quickQ.remove(u);
+        }
+        if (other == null) { startBotRoom(u, req.get("level"), resp); return; }
 
-            resp.put("room", id);
-            resp.put("start","true");
-            resp.put("turn","X");
-            resp.put("state", new String(r.board));
-        } else {
-            quickQ.offer(u);
-            resp.put("msg","queued");
+        // ghép được 2 người: tạo phòng và bắt đầu ngay
+        String id = "R-" + UUID.randomUUID().toString().substring(0,4).toUpperCase();
+        if (!enter(u, id)) {
+            synchronized (quickQ) { quickQ.add(other); }
+            err(resp,"already_in_room"); return;
         }
+        if (!enter(other, id)) {
+            userRoom.remove(u, id);
+            synchronized (quickQ) { quickQ.add(u); }
+            resp.put("msg","queued"); return;
+        }
+        Room r = new Room(id, other, workers);
+        r.guest = u;
+        r.hostReady = r.guestReady = true;
+        r.status = "playing";
+        r.board.reset();
+        r.turn = 'X';
+
+        rooms.put(id, r);
+        store.appendRoomEvent(id, r.host, r.guest, "playing");
+
+        resp.put("room", id);
+        resp.put("start","true");
+        resp.put("turn","X");
+        putState(resp, r);
+    }
+
+    // Đấu với máy ngay (level=easy|normal|hard): người chơi là host cầm X đi trước, bot cầm O
+    private void doBot(Map<String,String> req, Map<String,String> resp) {
+        String u = userFromToken(req, resp); if (u==null) return;
+        startBotRoom(u, req.get("level"), resp);
+    }
+
+    private void startBotRoom(String u, String level, Map<String,String> resp) {
+        String id = "R-" + UUID.randomUUID().toString().substring(0,4).toUpperCase();
+        if (!enter(u, id)) { err(resp,"already_in_room"); return; }
+        Room r = new Room(id, u, workers);
+        r.guest = Bot.NAME;
+        r.bot = true;
+        r.botBlunder = Bot.blunderRate(level);
+        r.hostReady = r.guestReady = true;
+        r.status = "playing";
+        r.turn = 'X';
+
+        rooms.put(id, r);
+        store.appendRoomEvent(id, u, Bot.NAME, "playing");
+
+        resp.put("room", id);
+        resp.put("start","true");
+        resp.put("turn","X");
+        putState(resp, r);
     }
 
     // Đặt trạng thái sẵn sàng/không sẵn sàng; khi cả hai sẵn sàng -> start
@@ -219,13 +426,17 @@ public class Core {
         if (u.equals(r.guest)) r.guestReady = set;
         if (r.hostReady && r.guestReady) {
             r.status = "playing";
-            r.resetBoard();
+            r.board.reset();
             r.turn = 'X';
             store.appendRoomEvent(r.id, r.host, r.guest, "playing");
+            publish(r, "start");
             resp.put("start","true");
             resp.put("turn","X");
-            resp.put("state", new String(r.board));
-        } else resp.put("ready","ok");
+            putState(resp, r);
+        } else {
+            publish(r, "ready");
+            resp.put("ready","ok");
+        }
     }
 
     // Thông tin phòng: host/guest/status/ready/turn/state hoặc winner khi closed
@@ -238,12 +449,15 @@ public class Core {
         resp.put("status", r.status);
         resp.put("hostReady", String.valueOf(r.hostReady));
         resp.put("guestReady", String.valueOf(r.guestReady));
+        if (!r.board.classic()) { resp.put("size", String.valueOf(r.board.size)); resp.put("k", String.valueOf(r.board.k)); }
         if ("playing".equals(r.status)) {
-            resp.put("turn", String.valueOf(r.turn));
-            resp.put("state", new String(r.board));
+            resp.put("turn", turnOf(r));
+            putState(resp, r);
         } else if ("closed".equals(r.status)) {
-            String lastWin = store.getLastWinnerForRoom(r.id);
+            String lastWin = lastWinner(r);
             if (!lastWin.isEmpty()) resp.put("winner", lastWin);
+            Outcome o = r.outcome;
+            if (o.matchId != null) { resp.put("match", o.matchId); resp.put("reason", o.reason); resp.put("state", o.board); }
         }
     }
 
@@ -254,46 +468,62 @@ public class Core {
         if (r==null || !"playing".equals(r.status)) { err(resp,"not_playing"); return; }
 
         int idx;
-        try { idx = Integer.parseInt(req.getOrDefault("idx","-1")); } catch (Exception e) { idx = -1; }
-        if (idx<0 || idx>8 || r.board[idx]!=' ') { err(resp,"bad_move"); return; }
+        try { idx = req instanceof ReqParser p ? p.intValue("idx", -1) : Integer.parseInt(req.getOrDefault("idx","-1")); }
+        catch (Exception e) { idx = -1; }
+        if (idx<0 || idx>=r.board.cells || r.board.occupied(idx)) { err(resp,"bad_move"); return; }
 
         char my = u.equals(r.host)?'X':(u.equals(r.guest)?'O':'?');
         if (my=='?' || my!=r.turn) { err(resp,"not_your_turn"); return; }
 
-        r.board[idx] = my;
-        r.moves.add(idx);
+        applyMove(r, idx, my, resp);
+
+        // Phòng đấu với bot: bot đi ngay trong cùng lượt xử lý của phòng (tra bảng, không tìm kiếm)
+        if (r.bot && "playing".equals(r.status) && r.turn == r.botSide()) {
+            applyMove(r, Bot.move(r.board.xMask(), r.board.oMask(), r.botBlunder), r.turn, resp);
+        }
+    }
+
+    // Đặt quân, xét thắng/hòa, ghi Store, điền resp và đẩy EVT "move"
+    private void applyMove(Room r, int idx, char my, Map<String,String> resp) {
+        r.board.place(idx, my);
         r.turn = (r.turn=='X')?'O':'X';
 
-        char winner = r.winner();
+        // chỉ người vừa đi mới có thể vừa thắng, và chỉ qua ô vừa đặt
+        char winner = r.board.wins(my, idx) ? my : ' ';
         if (winner!=' ') {
             // Kết thúc: có người thắng
             closeRoomAndClearReplay(r);
 
             String winUser = winner=='X'? r.host : r.guest;
-            store.appendMatch(r.id, r.host, r.guest, winUser, r.moves);
+            recordMatch(r, winUser, "win");
             store.updateWL(winUser, "W");
             store.updateWL(winner=='X'? r.guest : r.host, "L");
 
-            resp.put("state", new String(r.board));
+            putState(resp, r);
+            resp.remove("turn");
             resp.put("status","closed");
             resp.put("end","win");
             resp.put("winner", winUser);
+            publish(r, "move", "end","win", "winner",winUser);
 
-        } else if (r.full()) {
+        } else if (r.board.full()) {
             // Kết thúc: hòa
             closeRoomAndClearReplay(r);
 
-            store.appendMatch(r.id, r.host, r.guest, "draw", r.moves);
+            recordMatch(r, "draw", "draw");
             store.updateWL(r.host,"D"); store.updateWL(r.guest,"D");
 
-            resp.put("state", new String(r.board));
+            putState(resp, r);
+            resp.remove("turn");
             resp.put("status","closed");
             resp.put("end","draw");
+            publish(r, "move", "end","draw");
 
         } else {
             // Chưa kết thúc: trả state và lượt tiếp theo
-            resp.put("state", new String(r.board));
-            resp.put("turn", String.valueOf(r.turn));
+            putState(resp, r);
+            resp.put("turn", turnOf(r));
+            publish(r, "move");
         }
     }
 
@@ -313,7 +543,7 @@ public class Core {
             if (winner == null || winner.isBlank()) {
                 store.appendRoomEvent(r.id, r.host==null?"":r.host, r.guest==null?"":r.guest, "closed");
             } else {
-                store.appendMatch(r.id, r.host, r.guest, winner, r.moves);
+                recordMatch(r, winner, "leave");
                 store.updateWL(winner, "W");
                 store.updateWL(loser,  "L");
             }
@@ -332,6 +562,7 @@ public class Core {
             }
 
             // Dọn phòng nếu trống hoàn toàn
+            publish(r, "leave", "user",u);
             cleanupRoomIfEmpty(r);
 
             resp.put("left","true");
@@ -340,6 +571,7 @@ public class Core {
         }
 
         // Không ở trạng thái playing: cập nhật rời phòng theo vai trò
+        if (u.equals(r.host) || u.equals(r.guest)) userRoom.remove(u, r.id);
         if (u.equals(r.host)) {
             if (r.guest != null) {
                 r.host = r.guest; r.guest = null;
@@ -362,6 +594,7 @@ public class Core {
         }
         // Reset trạng thái replay và dọn phòng nếu cần
         r.replayOffer = null; r.replayAccepted = false; r.replayDeclined = false; r.replayPopupSent = false;
+        publish(r, "leave", "user",u);
         cleanupRoomIfEmpty(r);
 
         resp.put("left","true");
@@ -375,11 +608,11 @@ public class Core {
         if (r==null) { err(resp,"no_room"); return; }
 
         resp.put("status", r.status);
-        resp.put("state", new String(r.board));
-        resp.put("turn", String.valueOf(r.turn));
+        putState(resp, r);
+        resp.put("turn", turnOf(r));
 
         if ("closed".equals(r.status)) {
-            String win = store.getLastWinnerForRoom(r.id);
+            String win = lastWinner(r);
             if (!win.isEmpty()) { resp.put("end","win"); resp.put("winner", win); }
             else { resp.put("end","draw"); }
 
@@ -405,39 +638,66 @@ public class Core {
     }
 
     // Gửi chat và lưu vào Store theo room
+    // (chạy trong hộp thư của phòng nên không chen được với lúc phòng bị dọn)
     private void doChat(Map<String,String> req, Map<String,String> resp) {
         String u = userFromToken(req, resp); if (u==null) return;
-        String room = req.get("room");
+        Room r = rooms.get(req.get("room"));
+        if (r==null) { err(resp,"no_room"); return; }
         String text = req.getOrDefault("text","");
-        store.appendChat(room, u, text);
+        String seq = String.valueOf(store.appendChat(r.id, u, text));
+        publishTo(r.id, event(r.id, "chat", "from",u, "text",text, "seq",seq));
         resp.put("sent","true");
+        resp.put("seq", seq);
     }
 
     // Lấy log chat gọn cho 1 phòng (mặc định 20 dòng gần nhất)
+    // (since=<seq>: chỉ các tin mới hơn seq đó; seq= trong phản hồi là tin mới nhất)
     private void doChatLog(Map<String,String> req, Map<String,String> resp) {
         String u = userFromToken(req, resp); if (u==null) return;
         String room = req.get("room");
-        String log = store.getChatCompact(room, 20);
-        resp.put("log", log);
+        String since = req.get("since");
+        long after;
+        try { after = since == null ? 0 : Long.parseLong(since); } catch (NumberFormatException e) { after = 0; }
+        StringBuilder log = new StringBuilder();
+        long seq = store.getChatSince(room, after, since == null ? 20 : 0, log);
+        resp.put("log", log.toString());
+        resp.put("seq", String.valueOf(seq));
     }
 
-    // Lịch sử cá nhân gọn (compact) theo user hiện tại
+    // Lịch sử cá nhân gọn (compact) theo user hiện tại; phân trang bằng limit= và before=<mã trận>
     private void doHistory(Map<String,String> req, Map<String,String> resp) {
         String u = userFromToken(req, resp); if (u==null) return;
-        resp.put("history", store.getHistoryCompact(u));
+        int limit;
+        try { limit = Integer.parseInt(req.getOrDefault("limit","0")); } catch (NumberFormatException e) { limit = 0; }
+        resp.put("history", store.getHistoryCompact(u, Math.max(0, limit), req.get("before")));
     }
 
-    // Bảng xếp hạng: ưu tiên API V2 nếu có, fallback từ V1
-    private void doRank(Map<String,String> resp) {
-        String s;
-        try {
-            var m = store.getClass().getMethod("getLeaderboardCompactV2");
-            s = (String) m.invoke(store);
-        } catch (Throwable ignore) {
-            String v1 = store.getLeaderboardCompact();
-            s = upgradeV1ToV2(v1);
-        }
-        resp.put("rank", s == null ? "" : s);
+    // Bảng xếp hạng top 10 (Store cache sẵn chuỗi); kèm myRank= nếu request có token hợp lệ
+    private void doRank(Map<String,String> req, Map<String,String> resp) {
+        resp.put("rank", store.getLeaderboardCompactV2());
+        String t = req.get("token");
+        String u = sessions.user(t);
+        if (u != null) resp.put("myRank", String.valueOf(store.getRank(u)));
+    }
+
+    // Thắng/thua/hòa của user hiện tại tính lại từ log trong khoảng from..to (epoch ms hoặc yyyy-MM-dd, UTC)
+    private void doStats(Map<String,String> req, Map<String,String> resp) {
+        String u = userFromToken(req, resp); if (u==null) return;
+        long from = parseTime(req.get("from"), Long.MIN_VALUE, 0);
+        long to = parseTime(req.get("to"), Long.MAX_VALUE, 86_400_000L - 1);
+        if (from == Long.MAX_VALUE || to == Long.MIN_VALUE) { err(resp,"bad_time"); return; }
+        int[] wl = store.recomputeWL(u, from, to);
+        resp.put("wins", String.valueOf(wl[0]));
+        resp.put("losses", String.valueOf(wl[1]));
+        resp.put("draws", String.valueOf(wl[2]));
+    }
+
+    // Số = epoch ms, "yyyy-MM-dd" = đầu ngày + dayOffset; rỗng -> def; sai dạng -> giá trị ngược với def
+    private static long parseTime(String s, long def, long dayOffset) {
+        if (s == null || s.isBlank()) return def;
+        try { return Long.parseLong(s.trim()); } catch (NumberFormatException ignore) {}
+        try { return java.time.LocalDate.parse(s.trim()).toEpochDay() * 86_400_000L + dayOffset; }
+        catch (java.time.DateTimeException e) { return def == Long.MIN_VALUE ? Long.MAX_VALUE : Long.MIN_VALUE; }
     }
 
     // Người chơi A mời chơi lại; đặt cờ replay trong Room
@@ -445,13 +705,22 @@ public class Core {
         String u = userFromToken(req, resp); if (u==null) return;
         Room r = rooms.get(req.get("room"));
         if (r==null) { err(resp,"no_room"); return; }
+        if (!u.equals(r.host) && !u.equals(r.guest)) { err(resp,"not_in_room"); return; }
+        // chỉ mời chơi lại khi ván đã xong (không thì người đang thua có thể xóa bàn mà không bị tính thua)
+        if ("playing".equals(r.status)) { err(resp,"game_in_progress"); return; }
+        // bot luôn đồng ý chơi lại: host phải chưa sang phòng khác đang mở, như ACCEPT_REPLAY
+        if (r.bot && !enter(r.host, r.id)) { err(resp,"already_in_room"); return; }
 
         r.replayOffer     = u;
         r.replayDeclined  = false;
         r.replayAccepted  = false;
         r.replayPopupSent = false; 
 
+        publish(r, "offer", "offerReplay","true", "from",u);
         resp.put("offerReplay","ok");
+
+        // bot luôn đồng ý chơi lại
+        if (r.bot) startReplay(r, resp);
     }
 
     // Người còn lại chấp nhận: reset bàn, set playing, thông báo replayStart
@@ -460,8 +729,20 @@ public class Core {
         Room r = rooms.get(req.get("room"));
         if (r==null) { err(resp,"no_room"); return; }
         if (r.replayOffer==null || u.equals(r.replayOffer)) { err(resp,"no_offer"); return; }
+        // cả 2 phải chưa sang phòng khác đang mở; guest không vào được thì trả chỉ mục của host về như trước
+        String hostBefore = r.host == null ? null : userRoom.get(r.host);
+        if (!enter(r.host, r.id)) { err(resp,"already_in_room"); return; }
+        if (!enter(r.guest, r.id)) {
+            if (r.host != null && !r.id.equals(hostBefore)) {
+                if (hostBefore == null) userRoom.remove(r.host, r.id); else userRoom.replace(r.host, r.id, hostBefore);
+            }
+            err(resp,"already_in_room"); return;
+        }
+        startReplay(r, resp);
+    }
 
-        r.resetBoard();
+    private void startReplay(Room r, Map<String,String> resp) {
+        r.board.reset();
         r.turn = 'X';
         r.status = "playing";
 
@@ -471,10 +752,11 @@ public class Core {
         r.replayPopupSent = false;
 
         store.appendRoomEvent(r.id, r.host, r.guest, "playing");
+        publish(r, "accept", "replayStart","true");
 
         resp.put("replayStart","true");
         resp.put("turn","X");
-        resp.put("state", new String(r.board));
+        putState(resp, r);
     }
 
     // Từ chối replay: set cờ để phía mời nhận thông báo
@@ -488,6 +770,7 @@ public class Core {
         r.replayAccepted  = false;
         r.replayPopupSent = false;
 
+        publish(r, "decline", "replayDeclined","true", "offerer",r.replayOffer);
         resp.put("replayDeclined","true");
     }
 
@@ -503,19 +786,22 @@ public class Core {
         } catch (Exception e) { return s; }
     }
     private static Map<String,String> err(Map<String,String> resp, String msg) { resp.put("_status","ERR"); resp.put("msg",msg); return resp; }
-    private static String esc(String v){ return v.replace("\\","\\\\").replace(";","\\;").replace("\n","\\n").replace(" ","%20"); }
-    private static String unesc(String v){ return v.replace("%20"," ").replace("\\n","\n").replace("\\;",";").replace("\\\\","\\"); }
+    private static String esc(String v){
+        if (v.indexOf('\\')<0 && v.indexOf(';')<0 && v.indexOf('\n')<0 && v.indexOf(' ')<0) return v;
+        return v.replace("\\","\\\\").replace(";","\\;").replace("\n","\\n").replace(" ","%20");
+    }
 
     // Cấu trúc Room: id/host/guest/status/ready/board/turn/moves + trạng thái replay
+    // Mọi thay đổi Room chạy trong mailbox của nó; host/guest/status volatile cho LIST và forfeit đọc từ ngoài
     static class Room {
         final String id;
-        String host;
-        String guest = null;
-        String status = "waiting"; 
+        final Mailbox mailbox;
+        volatile String host;
+        volatile String guest = null;
+        volatile String status = "waiting";
         boolean hostReady=false, guestReady=false;
-        char[] board = new char[9];
+        final Board board;
         char turn='X';
-        List<Integer> moves = new ArrayList<>();
 
         // Trạng thái quy trình đề nghị chơi lại
         String  replayOffer     = null;
@@ -523,17 +809,60 @@ public class Core {
         boolean replayAccepted  = false;
         boolean replayPopupSent = false;
 
-        Room(String id, String host){ this.id=id; this.host=host; resetBoard(); }
-        void resetBoard(){ Arrays.fill(board,' '); moves.clear(); }
-        boolean full(){ for(char c:board) if(c==' ') return false; return true; }
-        char winner(){
-            int[][] w={{0,1,2},{3,4,5},{6,7,8},{0,3,6},{1,4,7},{2,5,8},{0,4,8},{2,4,6}};
-            for(int[] a:w){ if(board[a[0]]!=' ' && board[a[0]]==board[a[1]] && board[a[1]]==board[a[2]]) return board[a[0]]; }
-            return ' ';
+        // Kết quả trận gần nhất (null = chưa biết, lần đầu hỏi sẽ đọc từ log)
+        volatile Outcome outcome;
+
+        // Phòng đấu với máy (guest = Bot.NAME) và tỉ lệ bot đi ngẫu nhiên
+        boolean bot = false;
+        double  botBlunder = 0;
+
+        // Lúc có lệnh gần nhất (ms), để dọn phòng bỏ quên
+        volatile long lastActivity = System.currentTimeMillis();
+
+        // host/guest/status đã đưa lên sảnh lần gần nhất (chỉ relist dùng)
+        String listedHost, listedGuest, listedStatus;
+
+        Room(String id, String host, Executor executor){ this(id, host, executor, 3, 3); }
+        Room(String id, String host, Executor executor, int size, int k){
+            this.id=id; this.host=host; this.mailbox=new Mailbox(executor); this.board=new Board(size, k);
         }
+        char botSide(){ return Bot.NAME.equals(host) ? 'X' : 'O'; }
+    }
+
+    // Kết quả 1 trận: mã trận, người thắng (hoặc "draw"), lý do kết thúc (win/draw/leave/forfeit), bàn cuối
+    static class Outcome {
+        final String matchId, winner, reason, board;
+        Outcome(String id, String w, String why, String b){ matchId=id; winner=w==null?"":w; reason=why; board=b; }
+    }
+
+    // Ghi state= của bàn; bàn lớn kèm size/k và last = ô vừa đi để client cập nhật theo delta
+    // Lượt dạng chuỗi hằng (String.valueOf(char) tạo String mới mỗi lần STATE/MOVE)
+    private static String turnOf(Room r) { return r.turn == 'X' ? "X" : "O"; }
+
+    private static void putState(Map<String,String> m, Room r) {
+        Board b = r.board;
+        m.put("state", b.text());
+        if (b.classic()) return;
+        m.put("size", String.valueOf(b.size));
+        m.put("k", String.valueOf(b.k));
+        if (b.last >= 0) m.put("last", String.valueOf(b.last));
     }
 
     // Đóng phòng và reset mọi cờ replay
+    // Ghi trận vào Store và nhớ kết quả trên phòng để STATE/ROOMINFO/EVT không phải quét events.txt
+    private void recordMatch(Room r, String winner, String reason) {
+        String id = store.appendMatch(r.id, r.host, r.guest, winner, r.board.moveList());
+        r.outcome = new Outcome(id, winner, reason, r.board.text());
+    }
+
+    // Người thắng trận gần nhất của phòng ("draw" nếu hòa, "" nếu chưa có);
+    // chỉ đọc log khi phòng chưa có kết quả trong bộ nhớ (vd phòng cùng id từ trước khi restart)
+    private String lastWinner(Room r) {
+        Outcome o = r.outcome;
+        if (o == null) r.outcome = o = new Outcome(null, store.getLastWinnerForRoom(r.id), null, null);
+        return o.winner;
+    }
+
     private static void closeRoomAndClearReplay(Room r) {
         r.status = "closed";
         r.replayOffer = null;
@@ -543,8 +872,9 @@ public class Core {
     }
 
     // Đánh dấu người rời phòng và cập nhật lại state/role/ready/status
-    private static void markLeft(Room r, String user) {
+    private void markLeft(Room r, String user) {
         if (r == null || user == null) return;
+        if (user.equals(r.host) || user.equals(r.guest)) userRoom.remove(user, r.id);
         if (user.equals(r.host)) {
             r.host = null;
             r.hostReady = false;
@@ -576,66 +906,200 @@ public class Core {
     // Xóa phòng nếu không còn ai; ghi event "removed" vào Store
     private void cleanupRoomIfEmpty(Room r) {
         if (r == null) return;
-        if (r.host == null && (r.guest == null || r.guest.isBlank())) {
-            rooms.remove(r.id);
-            store.appendRoomEvent(r.id, "", "", "removed");
+        boolean empty = r.host == null && (r.guest == null || r.guest.isBlank());
+        // phòng bot không còn người thật cũng được dọn
+        if (r.bot && (r.host == null || Bot.NAME.equals(r.host)) && (r.guest == null || Bot.NAME.equals(r.guest))) empty = true;
+        if (empty) removeRoom(r);
+    }
+
+    // Gỡ phòng khỏi mọi chỉ mục (rooms, user -> phòng, đăng ký EVT, chat) và ghi event "removed"
+    private void removeRoom(Room r) {
+        if (r.host != null) userRoom.remove(r.host, r.id);
+        if (r.guest != null) userRoom.remove(r.guest, r.id);
+        rooms.remove(r.id);
+        lobby.put(r.id, null);
+        store.appendRoomEvent(r.id, "", "", "removed");
+        store.dropChat(r.id);
+        Set<Sink> left = subs.remove(r.id);
+        if (left != null) for (Sink s : left) sinkRoom.remove(s, r.id);
+    }
+
+    // Hạn không hoạt động của phòng theo trạng thái hiện tại; 0 = không dọn
+    private long idleTtl(Room r) {
+        return switch (r.status) {
+            case "closed" -> r.replayOffer != null ? REPLAY_TTL_MS : CLOSED_TTL_MS;
+            case "waiting", "ready" -> subscribed(r) ? 0 : WAITING_TTL_MS;
+            default -> 0;
+        };
+    }
+
+    // Luồng room-reaper: chỉ đọc các trường volatile để chọn phòng quá hạn, việc xóa chạy trong hộp thư của phòng
+    private void reapRooms() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Room r : rooms.values()) {
+                long ttl = idleTtl(r);
+                if (ttl > 0 && now - r.lastActivity >= ttl) r.mailbox.tell(() -> reap(r));
+            }
+        } catch (RuntimeException e) { e.printStackTrace(); }
+    }
+
+    // Kiểm tra lại trong hộp thư: phòng có thể vừa có lệnh mới hoặc đổi trạng thái từ lúc quét
+    private void reap(Room r) {
+        if (rooms.get(r.id) != r) return;
+        long ttl = idleTtl(r);
+        if (ttl == 0 || System.currentTimeMillis() - r.lastActivity < ttl) return;
+        removeRoom(r);
+        reaped.incrementAndGet();
+    }
+
+    // Số liệu vận hành: phòng đang sống theo trạng thái, phiên, user, số phòng đã dọn, thời gian khởi động
+    private void doMetrics(Map<String,String> resp) {
+        int waiting = 0, playing = 0, closed = 0, replay = 0;
+        for (Room r : rooms.values()) {
+            switch (r.status) {
+                case "waiting", "ready" -> waiting++;
+                case "playing" -> playing++;
+                case "closed" -> { closed++; if (r.replayOffer != null) replay++; }
+            }
         }
+        resp.put("rooms", String.valueOf(waiting + playing + closed));
+        resp.put("waiting", String.valueOf(waiting));
+        resp.put("playing", String.valueOf(playing));
+        resp.put("closed", String.valueOf(closed));
+        resp.put("replayPending", String.valueOf(replay));
+        resp.put("reaped", String.valueOf(reaped.get()));
+        resp.put("sessions", String.valueOf(sessions.size()));
+        resp.put("users", String.valueOf(store.userCount()));
+        resp.put("startupMs", String.valueOf(ServerMain.startupMs));
     }
 
     // Xử thua khi user rớt kết nối trong lúc playing; sắp xếp lại room như LEAVE
+    // (gửi vào hộp thư phòng của user, không sửa Room từ luồng của kết nối)
     private void forfeitIfPlaying(String u) {
         if (u == null || u.isBlank()) return;
-        for (Room r : rooms.values()) {
-            if ("closed".equals(r.status)) continue;
-            if (!"playing".equals(r.status)) continue;
-
-            if (u.equals(r.host) || u.equals(r.guest)) {
-                String winner = u.equals(r.host) ? r.guest : r.host;
-
-                closeRoomAndClearReplay(r);
-
-                if (winner == null || winner.isBlank()) {
-                    store.appendRoomEvent(r.id,
-                            r.host==null?"":r.host,
-                            r.guest==null?"":r.guest,
-                            "closed");
-                } else {
-                    store.appendMatch(r.id, r.host, r.guest, winner, r.moves);
-                    store.updateWL(winner, "W");
-                    store.updateWL(u, "L");
-                }
+        synchronized (quickQ) { quickQ.remove(u); }
+        String id = userRoom.get(u);
+        Room r = id == null ? null : rooms.get(id);
+        if (r != null) r.mailbox.tell(() -> forfeit(r, u));
+    }
 
-                markLeft(r, u);
-
-                if (!"playing".equals(r.status) &&
-                    ((r.host!=null && !r.host.isBlank()) ^ (r.guest!=null && !r.guest.isBlank()))) {
-                    if (r.host == null && r.guest != null) {
-                        r.host = r.guest; r.guest = null;
-                    }
-                    r.hostReady = false;
-                    r.guestReady = false;
-                    r.status = "waiting";
-                    store.appendRoomEvent(r.id, r.host==null?"":r.host, "", "waiting");
-                }
+    // Giữ chỗ cho u ở phòng id (và rút u khỏi hàng ghép nhanh); false nếu u đang ngồi ở phòng khác chưa đóng
+    private boolean enter(String u, String id) {
+        if (u == null || Bot.NAME.equals(u)) return true;
+        if (!id.equals(userRoom.compute(u, (k, cur) -> cur != null && !cur.equals(id) && holds(cur) ? cur : id))) return false;
+        synchronized (quickQ) { quickQ.remove(u); }
+        return true;
+    }
+
+    private boolean inActiveRoom(String u) {
+        String id = userRoom.get(u);
+        return id != null && holds(id);
+    }
+
+    // Phòng còn giữ người chơi: chưa closed, hoặc chưa có trong rooms (enter chạy trước rooms.put)
+    private boolean holds(String id) {
+        Room r = rooms.get(id);
+        return r == null || !"closed".equals(r.status);
+    }
 
-                cleanupRoomIfEmpty(r);
+    // Chạy trong hộp thư của phòng: kiểm tra lại vì phòng có thể đã đổi từ lúc xếp lệnh
+    private void forfeit(Room r, String u) {
+        if (rooms.get(r.id) != r || !"playing".equals(r.status)) return;
+        if (!u.equals(r.host) && !u.equals(r.guest)) return;
+
+        String winner = u.equals(r.host) ? r.guest : r.host;
+
+        closeRoomAndClearReplay(r);
+
+        if (winner == null || winner.isBlank()) {
+            store.appendRoomEvent(r.id,
+                    r.host==null?"":r.host,
+                    r.guest==null?"":r.guest,
+                    "closed");
+        } else {
+            recordMatch(r, winner, "forfeit");
+            store.updateWL(winner, "W");
+            store.updateWL(u, "L");
+        }
+
+        markLeft(r, u);
+
+        if (!"playing".equals(r.status) &&
+            ((r.host!=null && !r.host.isBlank()) ^ (r.guest!=null && !r.guest.isBlank()))) {
+            if (r.host == null && r.guest != null) {
+                r.host = r.guest; r.guest = null;
             }
+            r.hostReady = false;
+            r.guestReady = false;
+            r.status = "waiting";
+            store.appendRoomEvent(r.id, r.host==null?"":r.host, "", "waiting");
         }
+
+        publish(r, "leave", "user",u);
+        cleanupRoomIfEmpty(r);
+        relist(r);
+    }
+
+    // Đăng ký nhận EVT của 1 phòng; mỗi kết nối chỉ theo dõi 1 phòng (đăng ký mới thay cũ)
+    private void doSubscribe(Map<String,String> req, Map<String,String> resp, Sink sink) {
+        String u = userFromToken(req, resp); if (u==null) return;
+        if (sink == null) { err(resp,"no_push"); return; }
+        Room r = rooms.get(req.get("room"));
+        if (r==null) { err(resp,"no_room"); return; }
+        unsubscribe(sink);
+        subs.computeIfAbsent(r.id, k -> ConcurrentHashMap.newKeySet()).add(sink);
+        sinkRoom.put(sink, r.id);
+        resp.put("subscribed","true");
+        resp.put("room", r.id);
+    }
+
+    // Còn kết nối theo dõi phòng (kết nối đóng hoặc bị bỏ vì đọc chậm thì đã tự hủy đăng ký)
+    private boolean subscribed(Room r) {
+        Set<Sink> set = subs.get(r.id);
+        return set != null && !set.isEmpty();
+    }
+
+    private void unsubscribe(Sink sink) {
+        String room = sinkRoom.remove(sink);
+        if (room == null) return;
+        Set<Sink> set = subs.get(room);
+        if (set != null) set.remove(sink);
+    }
+
+    // Đẩy ảnh chụp phòng (host/guest/status/turn/state) kèm các cặp key/value thêm
+    private void publish(Room r, String type, String... extra) {
+        if (!subs.containsKey(r.id)) return;
+        Map<String,String> m = event(r.id, type);
+        m.put("host", r.host==null?"":r.host);
+        m.put("guest", r.guest==null?"":r.guest);
+        m.put("status", r.status);
+        m.put("turn", turnOf(r));
+        putState(m, r);
+        for (int i=0;i+1<extra.length;i+=2) m.put(extra[i], extra[i+1]==null?"":extra[i+1]);
+        if ("closed".equals(r.status) && !m.containsKey("end")) {
+            String win = lastWinner(r);
+            if (!win.isEmpty()) { m.put("end","win"); m.put("winner", win); }
+            else m.put("end","draw");
+        }
+        publishTo(r.id, m);
+    }
+
+    private static Map<String,String> event(String room, String type, String... extra) {
+        Map<String,String> m = new LinkedHashMap<>();
+        m.put("_status","EVT");
+        m.put("room", room);
+        m.put("type", type);
+        for (int i=0;i+1<extra.length;i+=2) m.put(extra[i], extra[i+1]==null?"":extra[i+1]);
+        return m;
     }
 
-    // Nâng cấp định dạng leaderboard compact từ V1 sang V2 nếu Store chưa có V2
-    private static String upgradeV1ToV2(String v1) {
-        if (v1 == null || v1.isBlank()) return "";
-        StringBuilder out = new StringBuilder();
-        String[] items = v1.split("\\|");
-        for (String it : items) {
-            if (it.isBlank()) continue;
-            String[] p = it.split(":");
-            String user = p.length>0 ? p[0] : "-";
-            String wins = p.length>1 ? p[1] : "0";
-            if (out.length()>0) out.append('|');
-            out.append(user).append(':').append(wins).append(":0:0");
+    private void publishTo(String room, Map<String,String> evt) {
+        Set<Sink> set = subs.get(room);
+        if (set == null || set.isEmpty()) return;
+        String line = encodeResponse(evt);
+        for (Sink s : set) {
+            try { s.push(line); } catch (Exception e) { unsubscribe(s); }
         }
-        return out.toString();
     }
 }
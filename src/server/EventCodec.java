@@ -0,0 +1,424 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Định dạng nhị phân của log sự kiện (-Dstore.format=bin): mỗi bản ghi là
+//   u8 loại | varint độ dài payload | u32 CRC32C(loại + payload), little-endian | payload
+// Chuỗi: varint độ dài + UTF-8. Thời điểm: varint epoch-millis + varint phần nano lẻ (để ra lại đúng chuỗi ISO cũ).
+// Tên user được "intern" qua bản ghi DICT (id tăng dần từ 1, 0 = chuỗi rỗng), từ điển riêng cho từng file đoạn.
+// Nước đi của trận: ô < 16 thì 2 ô/byte (nibble), bàn lớn thì varint từng ô.
+// Dòng không khớp đúng schema (key lạ, ts/id không chuẩn) được giữ nguyên văn trong bản ghi TEXT.
+// Đọc: gặp bản ghi cụt hoặc sai CRC thì dừng, trả độ dài phần hợp lệ để EventLog cắt đuôi khi mở lại.
+// Mỗi instance giữ từ điển của 1 file nên không dùng chung giữa các luồng.
+final class EventCodec {
+    static final byte META = 0, DICT = 1, USER = 2, ROOM = 3, MATCH = 4, CHAT = 5, TEXT = 6;
+
+    private final Map<String,Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Buf rec = new Buf(), payload = new Buf();
+    private final CRC32C crc = new CRC32C();
+
+    // Ghi 1 dòng (dạng "kind=..;k=v;" hoặc "#..." cho header/footer) thành các bản ghi; trả buffer dùng lại
+    Buf encode(String line) {
+        rec.n = 0;
+        if (line.startsWith("#")) { payload.n = 0; payload.raw(line); record(META); return rec; }
+        Map<String,String> m = Store.parseEvent(line);
+        byte type = switch (m.getOrDefault("kind", "")) {
+            case "user"  -> user(m);
+            case "room"  -> room(m);
+            case "match" -> match(m);
+            case "chat"  -> chat(m);
+            default      -> TEXT;
+        };
+        if (type == TEXT) { payload.n = 0; payload.raw(line); }
+        record(type);
+        return rec;
+    }
+
+    private byte user(Map<String,String> m) {
+        if (!fields(m, "u", "created")) return TEXT;
+        payload.n = 0;
+        if (!name(m.get("u")) || !ts(m.get("created"))) return TEXT;
+        return USER;
+    }
+
+    private byte room(Map<String,String> m) {
+        if (!fields(m, "id", "host", "guest", "status", "ts")) return TEXT;
+        payload.n = 0;
+        payload.str(m.get("id"));
+        if (!name(m.get("host")) || !name(m.get("guest"))) return TEXT;
+        payload.str(m.get("status"));
+        return ts(m.get("ts")) ? ROOM : TEXT;
+    }
+
+    private byte match(Map<String,String> m) {
+        if (!fields(m, "id", "room", "x", "o", "winner", "moves", "ts")) return TEXT;
+        String id = m.get("id");
+        long idMs;
+        try { idMs = Long.parseLong(id.substring(1)); } catch (RuntimeException e) { return TEXT; }
+        if (!("M" + idMs).equals(id)) return TEXT;
+        payload.n = 0;
+        payload.varint(idMs);
+        payload.str(m.get("room"));
+        if (!name(m.get("x")) || !name(m.get("o")) || !name(m.get("winner"))) return TEXT;
+        if (!moves(m.get("moves"))) return TEXT;
+        return ts(m.get("ts")) ? MATCH : TEXT;
+    }
+
+    private byte chat(Map<String,String> m) {
+        if (!fields(m, "room", "from", "text", "ts")) return TEXT;
+        payload.n = 0;
+        payload.str(m.get("room"));
+        if (!name(m.get("from"))) return TEXT;
+        payload.str(m.get("text"));
+        return ts(m.get("ts")) ? CHAT : TEXT;
+    }
+
+    // Đúng bộ key của schema (ngoài "kind")
+    private static boolean fields(Map<String,String> m, String... keys) {
+        if (m.size() != keys.length + 1) return false;
+        for (String k : keys) if (!m.containsKey(k)) return false;
+        return true;
+    }
+
+    // Tên mới thì ghi bản ghi DICT trước bản ghi đang dựng
+    private boolean name(String s) {
+        if (s.isEmpty()) { payload.varint(0); return true; }
+        Integer id = ids.get(s);
+        if (id == null) {
+            Buf p = new Buf();
+            p.raw(s);
+            put(DICT, p);
+            names.add(s);
+            ids.put(s, id = names.size());
+        }
+        payload.varint(id);
+        return true;
+    }
+
+    // Tách nhanh chuỗi do Instant.toString() sinh ra ("2025-09-26T13:19:21.661270700Z", phần lẻ 0/3/6/9 chữ số,
+    // không có nhóm "000" ở cuối); dạng khác thì trả false vì giải mã sẽ không ra lại đúng chuỗi cũ
+    private boolean ts(String s) {
+        int n = s.length();
+        if (n < 20 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+                || s.charAt(13) != ':' || s.charAt(16) != ':' || s.charAt(n - 1) != 'Z') return false;
+        int frac = n == 20 ? 0 : n - 21;
+        if (frac != 0 && (s.charAt(19) != '.' || frac % 3 != 0 || frac > 9 || s.endsWith("000Z"))) return false;
+        int y = digits(s, 0, 4), mo = digits(s, 5, 2), d = digits(s, 8, 2);
+        int h = digits(s, 11, 2), mi = digits(s, 14, 2), se = digits(s, 17, 2), f = digits(s, 20, frac);
+        if (y < 0 || h < 0 || h > 23 || mi < 0 || mi > 59 || se < 0 || se > 59 || f < 0) return false;
+        long day;
+        try { day = LocalDate.of(y, mo, d).toEpochDay(); } catch (DateTimeException e) { return false; }
+        long nanos = f;
+        for (int i = frac; i < 9; i++) nanos *= 10;
+        payload.varint(((day * 24 + h) * 60 + mi) * 60_000 + se * 1000L + nanos / 1_000_000);
+        payload.varint(nanos % 1_000_000);
+        return true;
+    }
+
+    // Số nguyên từ n chữ số tại vị trí off (n = 0 -> 0); -1 nếu có ký tự không phải chữ số
+    private static int digits(String s, int off, int n) {
+        int v = 0;
+        for (int i = off; i < off + n; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    // "a,b,c": u8 kiểu (0 = nibble, 1 = varint) + varint số ô + dữ liệu
+    private boolean moves(String s) {
+        String[] p = s.isEmpty() ? new String[0] : s.split(",", -1);
+        int[] v = new int[p.length];
+        boolean small = true;
+        try {
+            for (int i = 0; i < p.length; i++) { v[i] = Integer.parseInt(p[i]); small &= v[i] >= 0 && v[i] < 16; }
+        } catch (NumberFormatException e) { return false; }
+        if (!joinInts(v).equals(s)) return false;
+        payload.u8(small ? 0 : 1);
+        payload.varint(v.length);
+        if (small) for (int i = 0; i < v.length; i += 2) payload.u8(v[i] << 4 | (i + 1 < v.length ? v[i + 1] : 0));
+        else for (int x : v) { if (x < 0) return false; payload.varint(x); }
+        return true;
+    }
+
+    private static String joinInts(int[] v) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < v.length; i++) { if (i > 0) sb.append(','); sb.append(v[i]); }
+        return sb.toString();
+    }
+
+    private void record(byte type) { put(type, payload); }
+
+    private void put(byte type, Buf p) {
+        crc.reset();
+        crc.update(type);
+        crc.update(p.a, 0, p.n);
+        int c = (int) crc.getValue();
+        rec.u8(type);
+        rec.varint(p.n);
+        rec.u8(c); rec.u8(c >>> 8); rec.u8(c >>> 16); rec.u8(c >>> 24);
+        rec.bytes(p.a, 0, p.n);
+    }
+
+    // ===== Đọc =====
+
+    // Giải mã tuần tự file, mỗi bản ghi (trừ DICT) thành 1 dòng text như định dạng cũ; trả số byte hợp lệ
+    long read(Path f, Consumer<String> out) throws IOException {
+        try (FileChannel fc = FileChannel.open(f, StandardOpenOption.READ)) {
+            if (fc.size() == 0) return 0;
+            MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            return read(mb, out);
+        }
+    }
+
+    long read(ByteBuffer bb, Consumer<String> out) {
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        long ok = bb.position();
+        while (bb.hasRemaining()) {
+            byte type = bb.get();
+            long len = varint(bb);
+            if (len < 0 || len > Integer.MAX_VALUE || bb.remaining() < 4 + len) break;
+            int c = bb.getInt();
+            ByteBuffer p = bb.slice(bb.position(), (int) len).order(ByteOrder.LITTLE_ENDIAN);
+            crc.reset();
+            crc.update(type);
+            crc.update(p.duplicate());
+            if ((int) crc.getValue() != c) break;
+            String line;
+            try { line = decode(type, p); } catch (RuntimeException e) { break; }
+            bb.position(bb.position() + (int) len);
+            ok = bb.position();
+            if (line != null) out.accept(line);
+        }
+        return ok;
+    }
+
+    private String decode(byte type, ByteBuffer p) {
+        StringBuilder sb = new StringBuilder(96);
+        switch (type) {
+            case META, TEXT -> { return utf8(p, p.remaining()); }
+            case DICT -> {
+                String s = utf8(p, p.remaining());
+                names.add(s);
+                ids.put(s, names.size());
+                return null;
+            }
+            case USER -> {
+                sb.append("kind=user;");
+                kv(sb, "u", name(p)); kv(sb, "created", ts(p));
+            }
+            case ROOM -> {
+                sb.append("kind=room;");
+                kv(sb, "id", str(p)); kv(sb, "host", name(p)); kv(sb, "guest", name(p));
+                kv(sb, "status", str(p)); kv(sb, "ts", ts(p));
+            }
+            case MATCH -> {
+                sb.append("kind=match;");
+                kv(sb, "id", "M" + varint(p)); kv(sb, "room", str(p));
+                kv(sb, "x", name(p)); kv(sb, "o", name(p)); kv(sb, "winner", name(p));
+                kv(sb, "moves", moves(p)); kv(sb, "ts", ts(p));
+            }
+            case CHAT -> {
+                sb.append("kind=chat;");
+                kv(sb, "room", str(p)); kv(sb, "from", name(p)); kv(sb, "text", str(p)); kv(sb, "ts", ts(p));
+            }
+            default -> { return null; }
+        }
+        return sb.toString();
+    }
+
+    private static void kv(StringBuilder sb, String k, String v) { sb.append(k).append('=').append(Store.esc(v)).append(';'); }
+
+    private String name(ByteBuffer p) {
+        int id = (int) varint(p);
+        return id == 0 || id > names.size() ? "" : names.get(id - 1);
+    }
+
+    private static String str(ByteBuffer p) { return utf8(p, (int) varint(p)); }
+
+    private static String utf8(ByteBuffer p, int n) {
+        byte[] b = new byte[n];
+        p.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // Ngược với ts(String): in lại đúng dạng Instant.toString() (năm 0000..9999)
+    private static String ts(ByteBuffer p) {
+        long ms = varint(p), rem = varint(p);
+        LocalDate d = LocalDate.ofEpochDay(Math.floorDiv(ms, 86_400_000L));
+        long msOfDay = Math.floorMod(ms, 86_400_000L), nanos = msOfDay % 1000 * 1_000_000 + rem;
+        int sec = (int) (msOfDay / 1000);
+        StringBuilder sb = new StringBuilder(30);
+        pad(sb, d.getYear(), 4).append('-');
+        pad(sb, d.getMonthValue(), 2).append('-');
+        pad(sb, d.getDayOfMonth(), 2).append('T');
+        pad(sb, sec / 3600, 2).append(':');
+        pad(sb, sec / 60 % 60, 2).append(':');
+        pad(sb, sec % 60, 2);
+        if (nanos > 0) {
+            sb.append('.');
+            if (nanos % 1_000_000 == 0) pad(sb, nanos / 1_000_000, 3);
+            else if (nanos % 1000 == 0) pad(sb, nanos / 1000, 6);
+            else pad(sb, nanos, 9);
+        }
+        return sb.append('Z').toString();
+    }
+
+    private static StringBuilder pad(StringBuilder sb, long v, int width) {
+        String s = Long.toString(v);
+        for (int i = s.length(); i < width; i++) sb.append('0');
+        return sb.append(s);
+    }
+
+    private static String moves(ByteBuffer p) {
+        int kind = p.get(), n = (int) varint(p);
+        StringBuilder sb = new StringBuilder(n * 3);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) sb.append(',');
+            if (kind == 0) {
+                int b = p.get(p.position() + i / 2) & 0xFF;
+                sb.append(i % 2 == 0 ? b >>> 4 : b & 15);
+            } else sb.append(varint(p));
+        }
+        if (kind == 0) p.position(p.position() + (n + 1) / 2);
+        return sb.toString();
+    }
+
+    // -1 nếu varint bị cụt
+    private static long varint(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; shift < 64 && b.hasRemaining(); shift += 7) {
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if (x >= 0) return v;
+        }
+        return -1;
+    }
+
+    // events.txt -> events.bin (giữ nguyên phần đuôi số đoạn: events.txt.3 -> events.bin.3)
+    static Path binPath(Path text) {
+        String n = text.getFileName().toString();
+        int i = n.indexOf(".txt");
+        return text.resolveSibling(i < 0 ? n + ".bin" : n.substring(0, i) + ".bin" + n.substring(i + 4));
+    }
+
+    // Chuyển 1 log text (file đang ghi + các đoạn events.txt.N) sang nhị phân cạnh nó; trả số dòng đã chuyển
+    static long convertLog(Path text) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path dir = text.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, text.getFileName() + ".*")) {
+            for (Path f : ds) if (f.getFileName().toString().substring(text.getFileName().toString().length() + 1).matches("\\d+")) files.add(f);
+        }
+        if (Files.exists(text)) files.add(text);
+        long n = 0;
+        for (Path f : files) n += convert(f, binPath(f));
+        return n;
+    }
+
+    static long convert(Path in, Path out) throws IOException {
+        EventCodec c = new EventCodec();
+        long n = 0;
+        Path tmp = out.resolveSibling(out.getFileName() + ".tmp");
+        try (BufferedReader br = Files.newBufferedReader(in, StandardCharsets.UTF_8);
+             OutputStream os = new java.io.BufferedOutputStream(Files.newOutputStream(tmp))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isBlank()) continue;
+                Buf b = c.encode(line);
+                os.write(b.a, 0, b.n);
+                n++;
+            }
+        }
+        Files.move(tmp, out, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        return n;
+    }
+
+    // Công cụ dòng lệnh:
+    //   java server.EventCodec convert data/events.txt   (tạo events.bin và events.bin.N cạnh log text)
+    //   java server.EventCodec bench data/events.txt [lần lặp]   (so sánh ghi/đọc text và nhị phân)
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && "convert".equals(args[0])) {
+            System.out.println("converted " + convertLog(Path.of(args[1])) + " lines");
+        } else if (args.length >= 2 && "bench".equals(args[0])) {
+            bench(Path.of(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 200);
+        } else {
+            System.out.println("usage: EventCodec convert <events.txt> | bench <events.txt> [rounds]");
+        }
+    }
+
+    private static void bench(Path in, int rounds) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String l : Files.readAllLines(in, StandardCharsets.UTF_8)) if (!l.isBlank() && !l.startsWith("#")) lines.add(l);
+        byte[] nl = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+        Buf text = new Buf(), bin = new Buf();
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            text.n = 0;
+            for (String l : lines) { byte[] b = l.getBytes(StandardCharsets.UTF_8); text.bytes(b, 0, b.length); text.bytes(nl, 0, nl.length); }
+        }
+        long t1 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            EventCodec c = new EventCodec();
+            bin.n = 0;
+            for (String l : lines) { Buf b = c.encode(l); bin.bytes(b.a, 0, b.n); }
+        }
+        long t2 = System.nanoTime();
+        long[] sink = {0};
+        for (int r = 0; r < rounds; r++) {
+            for (String l : new String(text.a, 0, text.n, StandardCharsets.UTF_8).split("\\R")) sink[0] += Store.parseEvent(l).size();
+        }
+        long t3 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            new EventCodec().read(ByteBuffer.wrap(bin.a, 0, bin.n), l -> sink[0] += Store.parseEvent(l).size());
+        }
+        long t4 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            new EventCodec().read(ByteBuffer.wrap(bin.a, 0, bin.n), l -> sink[0] += l.length());
+        }
+        long t5 = System.nanoTime();
+
+        double mb = rounds * (double) text.n / (1 << 20);
+        System.out.printf("%d lines, text %d bytes, bin %d bytes (%.0f%%)%n", lines.size(), text.n, bin.n, 100.0 * bin.n / text.n);
+        System.out.printf("encode: text %.0f MB/s, bin %.0f MB/s (of text size)%n", mb / ((t1 - t0) / 1e9), mb / ((t2 - t1) / 1e9));
+        System.out.printf("scan+parseEvent per round: text %.2f ms, bin %.2f ms; bin decode only %.2f ms [%d]%n",
+                (t3 - t2) / 1e6 / rounds, (t4 - t3) / 1e6 / rounds, (t5 - t4) / 1e6 / rounds, sink[0] & 1);
+    }
+
+    // Mảng byte tự giãn, dùng lại giữa các lần encode
+    static final class Buf {
+        byte[] a = new byte[256];
+        int n;
+
+        void u8(int v) { ensure(1); a[n++] = (byte) v; }
+        void bytes(byte[] b, int off, int len) { ensure(len); System.arraycopy(b, off, a, n, len); n += len; }
+        void raw(String s) { byte[] b = s.getBytes(StandardCharsets.UTF_8); bytes(b, 0, b.length); }
+        void str(String s) { byte[] b = s.getBytes(StandardCharsets.UTF_8); varint(b.length); bytes(b, 0, b.length); }
+        void varint(long v) {
+            while ((v & ~0x7FL) != 0) { u8((int) (v & 0x7F) | 0x80); v >>>= 7; }
+            u8((int) v);
+        }
+        private void ensure(int k) { if (n + k > a.length) a = java.util.Arrays.copyOf(a, Math.max(a.length * 2, n + k)); }
+    }
+}
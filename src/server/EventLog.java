@@ -0,0 +1,423 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Ghi events.txt theo lô (group commit): các luồng request chỉ xếp dòng vào hàng đợi lock-free,
+// 1 luồng ghi riêng gom hết dòng đang chờ thành 1 lần write() trên FileChannel mở suốt vòng đời server.
+// Chính sách fsync (-Dstore.fsync): none = để OS tự xả, interval = fsync mỗi -Dstore.fsyncMs ms,
+// batch = fsync sau mỗi lô (không mất event đã ghi khi mất điện, chậm nhất).
+//
+// Phân đoạn: events.txt là đoạn đang ghi; khi vượt -Dstore.segmentMB hoặc đã mở quá -Dstore.segmentHours,
+// luồng ghi đóng nó thành "events.txt.N" (N tăng dần). Mỗi đoạn mở đầu bằng "#seg from=<ms>" và đoạn đã đóng
+// kết thúc bằng "#end from=..;to=..;kinds=..;n=.." để scan() bỏ qua đoạn không chứa kind/khoảng thời gian cần.
+// compact() viết lại các đoạn đã đóng: bỏ dòng room bị dòng room mới hơn (cùng id) thay thế và chat quá
+// -Dstore.chatRetainDays ngày; match và user giữ nguyên.
+//
+// -Dstore.format=bin: ghi events.bin (+ events.bin.N) theo EventCodec thay vì text; mọi chỗ đọc vẫn nhận dòng
+// text như cũ. Lần đầu bật mà chưa có events.bin thì log text hiện có được chuyển sang tự động.
+final class EventLog implements Runnable {
+    enum Durability { NONE, INTERVAL, BATCH }
+
+    // Gom tối đa chừng này byte mỗi lần write()
+    private static final int MAX_BATCH_BYTES = 1 << 20;
+    private static final byte[] NL = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final long SEGMENT_BYTES = Long.getLong("store.segmentMB", 64) << 20;
+    private static final long SEGMENT_MS = TimeUnit.HOURS.toMillis(Long.getLong("store.segmentHours", 24));
+    private static final long CHAT_RETAIN_MS = TimeUnit.DAYS.toMillis(Long.getLong("store.chatRetainDays", 7));
+    private static final boolean BINARY = "bin".equals(System.getProperty("store.format", "text"));
+
+    private final Path file;
+    private final Durability durability;
+    private final long fsyncNanos;
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    // Số dòng đã xếp hàng / đã ghi xuống file (reader dùng để chờ các dòng trước nó)
+    private final AtomicLong enqueued = new AtomicLong();
+    private volatile long written;
+    private volatile boolean idle, closing;
+    private final Thread writer;
+
+    private FileChannel ch;
+    private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    private EventCodec codec; // từ điển tên của đoạn đang ghi (chỉ khi BINARY)
+
+    // Các đoạn đã đóng (cũ -> mới); roll() giữ write lock để scan() không đọc lệch lúc đổi tên file
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ReentrantReadWriteLock rollLock = new ReentrantReadWriteLock();
+    private int lastSegNo;
+    // Thống kê của đoạn đang ghi (chỉ luồng ghi dùng)
+    private long segFrom, segTo, segLines;
+    private final Set<String> segKinds = new TreeSet<>();
+
+    EventLog(Path file) {
+        this.file = BINARY ? EventCodec.binPath(file) : file;
+        if (BINARY && !Files.exists(this.file) && Files.exists(file)) {
+            try { EventCodec.convertLog(file); } catch (IOException e) { e.printStackTrace(); }
+        }
+        loadSegments();
+        this.durability = Durability.valueOf(System.getProperty("store.fsync", "interval").toUpperCase());
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("store.fsyncMs", 1000));
+        this.writer = new Thread(this, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "event-log-close"));
+    }
+
+    // Gọi từ luồng bất kỳ; không chặn, không I/O
+    void append(String line) {
+        queue.add(line);
+        enqueued.incrementAndGet();
+        if (idle) LockSupport.unpark(writer);
+    }
+
+    // Chờ tới khi mọi dòng đã append trước lời gọi này nằm trong file (để đọc lại events.txt thấy chúng)
+    void sync() {
+        long target = enqueued.get();
+        while (written < target && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(50_000);
+        }
+    }
+
+    // Xả hết hàng đợi và fsync trước khi JVM thoát
+    void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try { writer.join(2000); } catch (InterruptedException ignored) {}
+    }
+
+    @Override
+    public void run() {
+        long lastSync = System.nanoTime();
+        boolean dirty = false;
+        while (true) {
+            int n = 0;
+            try {
+                String line;
+                while (buf.position() < MAX_BATCH_BYTES && (line = queue.poll()) != null) {
+                    // mở file trước khi mã hóa: định dạng bin cần từ điển tên của đoạn đang ghi. Mở ngay khi đã
+                    // lấy được dòng (không xét hàng đợi trước đó): dòng có thể tới sau khi roll() vừa đóng file
+                    if (ch == null) open();
+                    putLine(line);
+                    segKinds.add(kindOf(line));
+                    n++;
+                }
+                if (n > 0) {
+                    buf.flip();
+                    while (buf.hasRemaining()) ch.write(buf);
+                    dirty = true;
+                    segLines += n;
+                    segTo = System.currentTimeMillis();
+                    if (ch.size() >= SEGMENT_BYTES || segTo - segFrom >= SEGMENT_MS) { roll(); dirty = false; }
+                }
+                long now = System.nanoTime();
+                if (dirty && (durability == Durability.BATCH || closing
+                        || durability == Durability.INTERVAL && now - lastSync >= fsyncNanos)) {
+                    ch.force(false);
+                    dirty = false;
+                    lastSync = now;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (ch == null) LockSupport.parkNanos(100_000_000); // chưa mở được file: đợi rồi thử lại
+            } finally {
+                buf.clear();
+                if (n > 0) written += n;
+            }
+
+            if (!queue.isEmpty()) continue;
+            if (closing) return;
+            // Hết việc: ngủ tới khi có dòng mới (hoặc tới hạn fsync định kỳ)
+            idle = true;
+            if (queue.isEmpty() && !closing) {
+                if (dirty && durability == Durability.INTERVAL) LockSupport.parkNanos(Math.max(0, fsyncNanos - (System.nanoTime() - lastSync)));
+                else LockSupport.park();
+            }
+            idle = false;
+        }
+    }
+
+    // Mở events.txt để ghi tiếp: file mới thì ghi header; file có sẵn lúc khởi động thì đọc header nếu có,
+    // không biết trước đó đã ghi những kind nào nên ghi nhận "*" (footer khi đóng sẽ không cho bỏ qua đoạn này)
+    // Định dạng bin: đọc lại file để dựng từ điển tên và cắt phần đuôi ghi dở (bản ghi cụt/sai CRC)
+    private void open() throws IOException {
+        FileChannel c = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (BINARY) codec = new EventCodec();
+        if (c.size() == 0) {
+            ch = c;
+            segFrom = System.currentTimeMillis();
+            ch.write(ByteBuffer.wrap(lineBytes(codec, "#seg from=" + segFrom)));
+        } else {
+            String[] head = {null};
+            if (BINARY) {
+                long ok = codec.read(file, l -> { if (head[0] == null) head[0] = l; });
+                if (ok < c.size()) {
+                    System.err.println("[EventLog] truncating torn tail of " + file + " at " + ok + "/" + c.size());
+                    c.truncate(ok);
+                }
+            } else {
+                try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) { head[0] = br.readLine(); }
+            }
+            ch = c;
+            String first = head[0];
+            segFrom = first != null && first.startsWith("#seg ") ? Segment.num(Store.parseEvent(first.substring(5)).get("from")) : 0;
+            segKinds.add("*");
+        }
+    }
+
+    // Đóng đoạn hiện tại: ghi footer, fsync, đổi tên sang events.txt.N; lần ghi sau mở events.txt mới
+    private void roll() throws IOException {
+        rollLock.writeLock().lock();
+        try {
+            Segment s = new Segment(file.resolveSibling(file.getFileName() + "." + (lastSegNo + 1)), segFrom, segTo, segKinds, segLines);
+            ch.write(ByteBuffer.wrap(lineBytes(codec, s.footer())));
+            ch.force(false);
+            ch.close();
+            ch = null;
+            Files.move(file, s.path, StandardCopyOption.ATOMIC_MOVE);
+            lastSegNo++;
+            segments.add(s);
+            segKinds.clear();
+            segLines = 0;
+        } finally { rollLock.writeLock().unlock(); }
+    }
+
+    // Đọc (cũ -> mới) các dòng event của mọi đoạn có thể chứa kind trong khoảng [from, to] (epoch ms);
+    // kind null = mọi loại. Đoạn đang ghi luôn được đọc. Bỏ qua dòng header/footer.
+    void scan(String kind, long from, long to, Consumer<String> out) {
+        sync();
+        rollLock.readLock().lock();
+        try {
+            for (Path f : files(kind, from, to)) {
+                if (!Files.exists(f)) continue;
+                try {
+                    forEachLine(f, line -> {
+                        if (line.isEmpty() || line.charAt(0) == '#') return;
+                        if (kind == null || kind.equals(kindOf(line))) out.accept(line);
+                    });
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+        } finally { rollLock.readLock().unlock(); }
+    }
+
+    // Như scan() nhưng mmap và quét song song bằng LogScanner (truy vấn thống kê trên toàn bộ lịch sử);
+    // visit nhận mọi dòng của các đoạn được chọn, tự lọc kind/thời gian
+    <R> R scanParallel(String kind, long from, long to, Supplier<R> acc, BiConsumer<R, LogScanner.Line> visit, BinaryOperator<R> merge) {
+        sync();
+        rollLock.readLock().lock();
+        try { return LogScanner.scan(files(kind, from, to), acc, visit, merge); }
+        finally { rollLock.readLock().unlock(); }
+    }
+
+    // Các đoạn đã đóng có thể chứa kind trong [from, to] rồi tới file đang ghi (gọi khi giữ rollLock)
+    private List<Path> files(String kind, long from, long to) {
+        List<Path> files = new ArrayList<>();
+        for (Segment s : segments) if (s.covers(kind, from, to)) files.add(s.path);
+        files.add(file);
+        return files;
+    }
+
+    // Mọi dòng của 1 file log (kể cả header/footer), theo định dạng đang dùng
+    private static void forEachLine(Path f, Consumer<String> out) throws IOException {
+        if (BINARY) { new EventCodec().read(f, out); return; }
+        try (BufferedReader br = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) out.accept(line);
+        }
+    }
+
+    // 1 dòng ở dạng byte sẽ ghi xuống file: text + xuống dòng, hoặc các bản ghi nhị phân (c != null)
+    private static byte[] lineBytes(EventCodec c, String line) {
+        if (c == null) return (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        EventCodec.Buf b = c.encode(line);
+        return Arrays.copyOf(b.a, b.n);
+    }
+
+    private void putLine(String line) {
+        if (codec == null) { put(line.getBytes(StandardCharsets.UTF_8)); put(NL); return; }
+        EventCodec.Buf b = codec.encode(line);
+        put(b.a, b.n);
+    }
+
+    // Gọi định kỳ từ luồng nền của Store; chỉ đụng tới các đoạn đã đóng. File tạm được viết ngoài khóa,
+    // còn rename/xóa và sửa segments làm trong rollLock ghi để scan đang chạy không mất file giữa chừng.
+    // Duyệt từ đoạn mới nhất về cũ: dòng room của 1 phòng chỉ giữ lại nếu không có dòng room mới hơn cùng id.
+    void compact() {
+        long chatCutoff = System.currentTimeMillis() - CHAT_RETAIN_MS;
+        Set<String> laterRooms = new HashSet<>();
+        List<Segment> snap = new ArrayList<>(segments);
+        for (int i = snap.size() - 1; i >= 0; i--) {
+            Segment s = snap.get(i);
+            try {
+                Segment c = compact(s, laterRooms, chatCutoff);
+                if (c == null) continue;
+                Path tmp = tmpOf(s);
+                rollLock.writeLock().lock();
+                try {
+                    // đoạn không còn dòng nào thì xóa hẳn
+                    if (c.lines == 0) { segments.remove(s); Files.delete(tmp); Files.delete(c.path); }
+                    else {
+                        Files.move(tmp, s.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                        segments.set(segments.indexOf(s), c);
+                    }
+                } finally { rollLock.writeLock().unlock(); }
+            } catch (IOException | RuntimeException e) { e.printStackTrace(); }
+        }
+    }
+
+    private static Path tmpOf(Segment s) { return s.path.resolveSibling(s.path.getFileName() + ".tmp"); }
+
+    // Viết lại 1 đoạn ra file tạm (tmpOf(s), đã fsync) để compact() thay vào; trả null nếu không có gì để bỏ
+    private Segment compact(Segment s, Set<String> laterRooms, long chatCutoff) throws IOException {
+        // lượt 1: vị trí dòng room cuối cùng của từng phòng trong đoạn
+        Map<String,Long> lastRoomLine = new HashMap<>();
+        long[] no = {0};
+        forEachLine(s.path, line -> {
+            no[0]++;
+            if (line.startsWith("kind=room;")) lastRoomLine.put(Store.parseEvent(line).get("id"), no[0]);
+        });
+        // lượt 2: ghi các dòng được giữ
+        Path tmp = tmpOf(s);
+        Set<String> kinds = new TreeSet<>();
+        long[] kept = {0}, drop = {0};
+        no[0] = 0;
+        EventCodec oc = BINARY ? new EventCodec() : null;
+        Segment c;
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            os.write(lineBytes(oc, "#seg from=" + s.from + ";compacted=true"));
+            forEachLine(s.path, line -> {
+                no[0]++;
+                if (line.isEmpty() || line.charAt(0) == '#') return;
+                String kind = kindOf(line);
+                if ("room".equals(kind)) {
+                    String id = Store.parseEvent(line).get("id");
+                    if (laterRooms.contains(id) || lastRoomLine.get(id) != no[0]) { drop[0]++; return; }
+                } else if ("chat".equals(kind) && expired(line, chatCutoff)) { drop[0]++; return; }
+                try { os.write(lineBytes(oc, line)); } catch (IOException e) { throw new UncheckedIOException(e); }
+                kinds.add(kind);
+                kept[0]++;
+            });
+            c = new Segment(s.path, s.from, s.to, kinds, kept[0]);
+            os.write(lineBytes(oc, c.footer()));
+            laterRooms.addAll(lastRoomLine.keySet());
+        }
+        if (drop[0] == 0) { Files.delete(tmp); return null; }
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) { fc.force(true); }
+        return c;
+    }
+
+    private static boolean expired(String line, long cutoff) {
+        String ts = Store.parseEvent(line).get("ts");
+        try { return ts != null && Instant.parse(ts).toEpochMilli() < cutoff; }
+        catch (RuntimeException e) { return false; }
+    }
+
+    // "kind=match;..." -> "match"
+    static String kindOf(String line) {
+        if (!line.startsWith("kind=")) return "";
+        int e = line.indexOf(';');
+        return e < 0 ? line.substring(5) : line.substring(5, e);
+    }
+
+    // Đọc footer của các đoạn events.txt.N có sẵn; đoạn thiếu footer coi như chứa mọi thứ
+    private void loadSegments() {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir == null || !Files.isDirectory(dir)) return;
+        List<Segment> found = new ArrayList<>();
+        String prefix = file.getFileName() + ".";
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path f : ds) {
+                long no = Segment.num(f.getFileName().toString().substring(prefix.length()));
+                if (no <= 0) continue;
+                found.add(Segment.read(f));
+                lastSegNo = (int) Math.max(lastSegNo, no);
+            }
+        } catch (IOException e) { e.printStackTrace(); }
+        found.sort((a, b) -> Long.compare(a.no, b.no));
+        segments.addAll(found);
+    }
+
+    // 1 đoạn đã đóng và thông tin trong footer của nó
+    static final class Segment {
+        final Path path;
+        final long no, from, to, lines;
+        final Set<String> kinds;
+
+        Segment(Path path, long from, long to, Set<String> kinds, long lines) {
+            this.path = path; this.from = from; this.to = to; this.kinds = new TreeSet<>(kinds); this.lines = lines;
+            String n = path.getFileName().toString();
+            this.no = num(n.substring(n.lastIndexOf('.') + 1));
+        }
+
+        boolean covers(String kind, long a, long b) {
+            if (to < a || from > b) return false;
+            return kind == null || kinds.contains("*") || kinds.contains(kind);
+        }
+
+        String footer() {
+            return "#end from=" + from + ";to=" + to + ";kinds=" + String.join(",", kinds) + ";n=" + lines;
+        }
+
+        // Footer nằm ở dòng cuối: chỉ đọc vài trăm byte cuối file
+        static Segment read(Path f) throws IOException {
+            try (FileChannel fc = FileChannel.open(f, StandardOpenOption.READ)) {
+                long size = fc.size();
+                ByteBuffer tail = ByteBuffer.allocate((int) Math.min(size, 4096));
+                fc.read(tail, size - tail.capacity());
+                String t = new String(tail.array(), 0, tail.position(), StandardCharsets.UTF_8).stripTrailing();
+                int i = t.lastIndexOf("#end ");
+                if (i < 0) return new Segment(f, 0, Long.MAX_VALUE, Set.of("*"), -1);
+                Map<String,String> m = Store.parseEvent(t.substring(i + 5));
+                Set<String> kinds = new TreeSet<>();
+                for (String k : m.getOrDefault("kinds", "").split(",")) if (!k.isEmpty()) kinds.add(k);
+                return new Segment(f, num(m.get("from")), num(m.get("to")), kinds, num(m.get("n")));
+            }
+        }
+
+        static long num(String s) {
+            try { return Long.parseLong(s.trim()); } catch (RuntimeException e) { return -1; }
+        }
+    }
+
+    private void put(byte[] b) { put(b, b.length); }
+
+    private void put(byte[] b, int len) {
+        if (buf.remaining() < len) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + len));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+        buf.put(b, 0, len);
+    }
+}
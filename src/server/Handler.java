@@ -2,13 +2,41 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Handler implements Runnable, Core.Sink {
+    // Số request tối đa đang xử lý dở trên 1 kết nối ở chế độ pipeline
+    static final int MAX_IN_FLIGHT = 64;
+    // Số EVT tối đa chờ ghi ra 1 kết nối; client không đọc kịp thì bị hủy SUBSCRIBE thay vì chặn luồng phát
+    static final int MAX_QUEUED_EVENTS = Math.max(1, Integer.getInteger("push.maxQueued", 256));
 
-public class Handler implements Runnable {
     private final Socket socket;       
     private final Core core;           
     private String lastToken = null;   
+    private volatile OutputStream out;
+    // true nếu client mở đầu bằng BinProto.HANDSHAKE (frame nhị phân thay cho dòng text)
+    private volatile boolean binary = false;
+    // Phản hồi (luồng Handler) và sự kiện đẩy (luồng khác) cùng ghi vào out -> khóa ghi
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Bật bằng "REQ id=..;cmd=PIPELINE;on=true": request chạy song song, trả lời theo req=
+    private boolean pipelined = false;
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    // EVT chờ ghi; luồng ảo riêng của kết nối (pusher) lấy ra và ghi, push() không bao giờ chặn
+    private final LinkedBlockingQueue<byte[]> events = new LinkedBlockingQueue<>(MAX_QUEUED_EVENTS);
+    private Thread pusher;
+    private String remote;
+    // Giới hạn độ dài 1 dòng request text
+    private static final int MAX_LINE = 64 * 1024;
+    // Dùng lại cho mọi request đồng bộ trên kết nối (chỉ luồng Handler chạm vào)
+    private final ReqParser parser = new ReqParser();
+    private final RespWriter writer = new RespWriter();
+    private final RespMap resp = new RespMap();
 
     // constructor nhận socket (client) và core (logic)
     public Handler(Socket socket, Core core) {
@@ -18,49 +46,164 @@ public class Handler implements Runnable {
 
     @Override
     public void run() {
-        String remote = socket.getRemoteSocketAddress().toString();
+        remote = socket.getRemoteSocketAddress().toString();
         System.out.println("[Server] Connected: " + remote);
 
-        // tạo luồng đọc và ghi text từ/đến client 
-        try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-             BufferedWriter out = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
-
-            String line;
-            // vòng lặp: liên tục đọc dữ liệu text từ client
-            while ((line = in.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue; // bỏ qua dòng rỗng
-
-                // parse dữ liệu request text thành map key-value
-                Map<String,String> req = Core.parseLine(line);
-
-                // lấy token từ request (nếu có) để nhớ user này
-                String tok = req.get("token");
-                if (tok != null && !tok.isBlank()) lastToken = tok;
-
-                // gọi core.handle(line) để xử lý logic yêu cầu
-                Map<String,String> res = core.handle(line);
+        // tạo luồng đọc và ghi từ/đến client 
+        try (InputStream in = new BufferedInputStream(socket.getInputStream());
+             OutputStream o = new BufferedOutputStream(socket.getOutputStream())) {
+            out = o;
+            pusher = Thread.ofVirtual().name("push-" + remote).start(this::drainEvents);
 
-                // mã hóa kết quả thành chuỗi text để trả về
-                String response = Core.encodeResponse(res);
-
-                // ghi chuỗi phản hồi về cho client
-                out.write(response);
-                out.write("\n");
-                out.flush();
+            // byte đầu tiên quyết định giao thức: HANDSHAKE -> nhị phân, còn lại -> text
+            in.mark(1);
+            int first = in.read();
+            if (first == BinProto.HANDSHAKE) {
+                binary = true;
+                readFrames(new DataInputStream(in));
+            } else if (first >= 0) {
+                in.reset();
+                readLines(in);
             }
         } catch (IOException e) {
             // nếu client đóng kết nối hoặc bị mất kết nối
         } finally {
+            if (pusher != null) pusher.interrupt();
             // nếu client có token và thoát giữa chừng -> xử lý disconnect trong core
             if (lastToken != null) {
                 core.onDisconnectToken(lastToken);
             }
+            core.onDisconnectSink(this);
             core.onDisconnect(socket); // giữ API cũ
             try { socket.close(); } catch (IOException ignored) {}
             System.out.println("[Server] Disconnected: " + remote);
         }
     }
+
+    // Cắt dòng trực tiếp trên mảng byte dùng lại, parse bằng ReqParser (không tạo String mỗi dòng)
+    private void readLines(InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        int len = 0;
+        // vòng lặp: liên tục đọc dữ liệu text từ client
+        while (true) {
+            if (len == buf.length) {
+                if (buf.length >= MAX_LINE) return; // dòng quá dài -> đóng kết nối
+                buf = java.util.Arrays.copyOf(buf, buf.length * 2);
+            }
+            int n = in.read(buf, len, buf.length - len);
+            if (n < 0) return;
+            int start = 0;
+            for (int i = len; i < len + n; i++) {
+                if (buf[i] != '\n') continue;
+                parser.reset(buf, start, i - start);
+                start = i + 1;
+                if (parser.blank()) continue; // bỏ qua dòng rỗng
+                dispatch(parser, 0);
+            }
+            len += n;
+            System.arraycopy(buf, start, buf, 0, len - start);
+            len -= start;
+        }
+    }
+
+    private void readFrames(DataInputStream in) throws IOException {
+        byte[] frame = new byte[BinProto.MAX_FRAME];
+        while (true) {
+            int len = in.readUnsignedShort();
+            if (len < 5) return;
+            in.readFully(frame, 0, len);
+            Map<String,String> req = BinProto.decode(ByteBuffer.wrap(frame, 0, len));
+            if (req == null) return; // frame hỏng -> đóng kết nối
+            dispatch(req, BinProto.opcode(req.get("cmd")));
+        }
+    }
+
+    private void dispatch(Map<String,String> req, int op) throws IOException {
+        // lấy token từ request (nếu có) để nhớ user này
+        if (!(req == parser && parser.valueEquals("token", lastToken))) {
+            String tok = req.get("token");
+            if (tok != null && !tok.isBlank()) lastToken = tok;
+        }
+
+        if ("PIPELINE".equals(req.get("cmd"))) {
+            pipelined = !"false".equals(req.get("on"));
+            write(encode(op, pipelineAck(req, pipelined)));
+            return;
+        }
+
+        if (pipelined) {
+            // chờ slot nếu client gửi dồn quá nhiều (backpressure), rồi xử lý trên pool của Core
+            inFlight.acquireUninterruptibly();
+            core.handleAsync(ReqParser.copyOf(req), this).whenComplete((r, ex) -> {
+                inFlight.release();
+                try { if (r != null) write(encode(op, r)); } catch (IOException ignored) {}
+            });
+            return;
+        }
+
+        // gọi core.handle để xử lý logic yêu cầu, mã hóa kết quả rồi ghi về client
+        resp.clear();
+        core.handle(req, resp, this);
+        if (binary) { write(encode(op, resp)); return; }
+        writer.write(resp);
+        writeLock.lock();
+        try {
+            out.write(writer.buf, 0, writer.len);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private byte[] encode(int op, Map<String,String> res) {
+        if (binary) {
+            ByteBuffer bb = BinProto.encode(op, res);
+            return java.util.Arrays.copyOf(bb.array(), bb.limit());
+        }
+        return (Core.encodeResponse(res) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Map<String,String> pipelineAck(Map<String,String> req, boolean on) {
+        Map<String,String> res = new LinkedHashMap<>();
+        res.put("req", req.getOrDefault("id",""));
+        res.put("pipeline", String.valueOf(on));
+        return res;
+    }
+
+    // Sự kiện đẩy từ Core (chạy trên luồng hộp thư của phòng): chỉ xếp hàng, không ghi socket ở đây
+    @Override
+    public void push(String line) {
+        byte[] b;
+        if (binary) {
+            ByteBuffer bb = BinProto.encodeEvent(line);
+            b = java.util.Arrays.copyOf(bb.array(), bb.limit());
+        } else {
+            b = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        if (events.offer(b)) return;
+        // hàng đầy: client không đọc -> bỏ đăng ký, phòng không phải chờ nó
+        System.out.println("[Server] Slow subscriber dropped: " + remote);
+        core.onDisconnectSink(this);
+        events.clear();
+    }
+
+    // Luồng pusher: ghi lần lượt các EVT đã xếp hàng (cùng writeLock với phản hồi) tới khi kết nối đóng
+    private void drainEvents() {
+        try {
+            while (true) write(events.take());
+        } catch (InterruptedException | IOException ignored) {
+            // kết nối đóng
+        }
+    }
+
+    private void write(byte[] b) throws IOException {
+        writeLock.lock();
+        try {
+            if (out == null) return;
+            out.write(b);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
 }
@@ -0,0 +1,135 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Đo tải cho 2 chế độ blocking của ServerMain: chạy server trong cùng JVM (Store trên thư mục tạm, cổng ngẫu nhiên),
+// mở N kết nối ngồi yên + M client gửi LOGIN rồi LIST/RANK liên tục trong T giây; in số request/s, độ trễ p50/p99,
+// số thread và heap đang dùng. Chạy lần lượt từng chế độ rồi so kết quả:
+//   java -Dmode=pool    -cp bin server.LoadBench [idle] [active] [giây]
+//   java -Dmode=virtual -cp bin server.LoadBench [idle] [active] [giây]
+public class LoadBench {
+    public static void main(String[] args) throws Exception {
+        String mode = System.getProperty("mode", "virtual");
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int active = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int secs = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        Path dir = Files.createTempDirectory("loadbench");
+        Store store = new Store(dir.resolve("users.txt").toString(), dir.resolve("events.txt").toString());
+        store.initIfMissing();
+        store.start();
+        Core core = new Core(store);
+        ExecutorService pool = "virtual".equalsIgnoreCase(mode)
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+        ServerSocket ss = new ServerSocket();
+        ss.bind(new InetSocketAddress("127.0.0.1", 0), 4096);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) pool.submit(new Handler(ss.accept(), core));
+            } catch (IOException ignored) {
+                // ss đóng khi đo xong
+            }
+        }, "bench-accept");
+        acceptor.start();
+        int port = ss.getLocalPort();
+
+        // Client luôn chạy trên virtual thread để phía đo giống nhau ở cả 2 chế độ
+        ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+        List<Socket> idleSockets = new ArrayList<>(idle);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < idle; i++) idleSockets.add(new Socket("127.0.0.1", port));
+        long connectMs = (System.nanoTime() - t0) / 1_000_000;
+
+        AtomicLong done = new AtomicLong(), errors = new AtomicLong();
+        long[][] lat = new long[active][];
+        CountDownLatch started = new CountDownLatch(active);
+        long deadline = System.nanoTime() + secs * 1_000_000_000L;
+        List<Future<?>> fs = new ArrayList<>();
+        for (int i = 0; i < active; i++) {
+            int c = i;
+            fs.add(clients.submit(() -> {
+                long[] ns = new long[1 << 16];
+                int n = 0;
+                try (Socket s = new Socket("127.0.0.1", port)) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                    OutputStream out = s.getOutputStream();
+                    call(in, out, "REQ id=0;cmd=REGISTER;user=bench" + c + ";pass=123");
+                    String login = call(in, out, "REQ id=0;cmd=LOGIN;user=bench" + c + ";pass=123");
+                    String token = login.substring(login.indexOf("token=") + 6).split(";")[0].trim();
+                    started.countDown();
+                    started.await();
+                    for (int id = 1; System.nanoTime() < deadline; id++) {
+                        String line = (id & 1) == 0 ? "REQ id=" + id + ";cmd=LIST"
+                                : "REQ id=" + id + ";cmd=RANK;token=" + token;
+                        long a = System.nanoTime();
+                        if (!call(in, out, line).startsWith("OK")) errors.incrementAndGet();
+                        if (n < ns.length) ns[n++] = System.nanoTime() - a;
+                        done.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    started.countDown();
+                }
+                lat[c] = Arrays.copyOf(ns, n);
+                return null;
+            }));
+        }
+        started.await();
+        long t1 = System.nanoTime();
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        Runtime rt = Runtime.getRuntime();
+        int threads = mx.getThreadCount();
+        long heapMb = (rt.totalMemory() - rt.freeMemory()) >> 20;
+        for (Future<?> f : fs) f.get();
+        double elapsed = (System.nanoTime() - t1) / 1e9;
+
+        long total = 0;
+        for (long[] l : lat) total += l == null ? 0 : l.length;
+        long[] all = new long[(int) total];
+        int k = 0;
+        for (long[] l : lat) if (l != null) { System.arraycopy(l, 0, all, k, l.length); k += l.length; }
+        Arrays.sort(all);
+        System.out.printf("mode=%s idle=%d active=%d: connect %d ms, %.0f req/s, p50 %.2f ms, p99 %.2f ms, errors %d%n",
+                mode, idle, active, connectMs, done.get() / elapsed, pct(all, 0.50), pct(all, 0.99), errors.get());
+        System.out.printf("live threads %d (peak %d), heap used ~%d MB%n", threads, mx.getPeakThreadCount(), heapMb);
+
+        ss.close();
+        for (Socket s : idleSockets) s.close();
+        clients.shutdownNow();
+        pool.shutdownNow();
+        System.exit(0);
+    }
+
+    private static String call(BufferedReader in, OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String r;
+        while ((r = in.readLine()) != null && r.startsWith("EVT")) { /* bỏ qua sự kiện đẩy */ }
+        if (r == null) throw new IOException("closed");
+        return r;
+    }
+
+    private static double pct(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Ảnh chụp sảnh cho LIST: mỗi phòng waiting/ready/playing là 1 dòng "id,host,guest,status", kèm số phiên bản.
+// Core gọi put() khi host/guest/status của phòng có thể đã đổi; chỉ khi dòng thật sự đổi (vào/ra trạng thái
+// được liệt kê, đổi người) mới tăng version và ghi 1 thay đổi vào nhật ký delta (giữ -Dlobby.deltaKeep bản ghi).
+// Chuỗi đầy đủ dựng lười ở lần LIST đầu tiên sau khi đổi rồi dùng chung cho mọi client tới lần đổi sau.
+final class Lobby {
+    private static final int DELTA_KEEP = Math.max(1, Integer.getInteger("lobby.deltaKeep", 512));
+
+    // Các trường dưới chỉ dùng trong synchronized(this)
+    private final Map<String, String> rows = new LinkedHashMap<>();
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private long version;
+
+    private volatile long latest;                         // = version, đọc không khóa
+    private volatile Snapshot snap = new Snapshot(0, "");
+    private volatile Delta lastDelta;                     // client cùng phiên bản cũ hỏi lại thì dùng chung
+
+    synchronized void put(String id, String row) {
+        String before = row == null ? rows.remove(id) : rows.put(id, row);
+        if (Objects.equals(before, row)) return;
+        changes.addLast(new Change(++version, id, before, row));
+        if (changes.size() > DELTA_KEEP) changes.removeFirst();
+        latest = version;
+    }
+
+    long version() { return latest; }
+
+    Snapshot current() {
+        Snapshot s = snap;
+        if (s.version == latest) return s;
+        synchronized (this) {
+            if (snap.version != version) {
+                StringBuilder sb = new StringBuilder(rows.size() * 32);
+                for (String r : rows.values()) sb.append(r).append('|');
+                snap = new Snapshot(version, sb.toString());
+            }
+            return snap;
+        }
+    }
+
+    // Thay đổi từ sau phiên bản since tới hiện tại, gộp theo phòng; null nếu nhật ký không còn đủ (trả cả danh sách)
+    Delta since(long since) {
+        Delta d = lastDelta;
+        if (d != null && d.from == since && d.version == latest) return d;
+        synchronized (this) {
+            if (since < 0 || since > version) return null;
+            Change first = changes.peekFirst();
+            if (first == null || first.version > since + 1) return null;
+            // id -> {dòng lúc since, dòng hiện tại}
+            Map<String, String[]> net = new LinkedHashMap<>();
+            for (Iterator<Change> it = changes.descendingIterator(); it.hasNext(); ) {
+                Change c = it.next();
+                if (c.version <= since) break;
+                net.computeIfAbsent(c.id, k -> new String[]{null, c.after})[0] = c.before;
+            }
+            StringBuilder added = new StringBuilder(), removed = new StringBuilder(), updated = new StringBuilder();
+            for (Map.Entry<String, String[]> e : net.entrySet()) {
+                String before = e.getValue()[0], after = e.getValue()[1];
+                if (before == null && after != null) added.append(after).append('|');
+                else if (before != null && after == null) removed.append(e.getKey()).append('|');
+                else if (before != null && !before.equals(after)) updated.append(after).append('|');
+            }
+            d = new Delta(since, version, added.toString(), removed.toString(), updated.toString());
+            lastDelta = d;
+            return d;
+        }
+    }
+
+    static final class Snapshot {
+        final long version;
+        final String rooms;
+        Snapshot(long version, String rooms) { this.version = version; this.rooms = rooms; }
+    }
+
+    static final class Delta {
+        final long from, version;
+        final String added, removed, updated;
+        Delta(long from, long version, String added, String removed, String updated) {
+            this.from = from; this.version = version; this.added = added; this.removed = removed; this.updated = updated;
+        }
+    }
+
+    private static final class Change {
+        final long version;
+        final String id, before, after;
+        Change(long version, String id, String before, String after) {
+            this.version = version; this.id = id; this.before = before; this.after = after;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+// Quét song song toàn bộ log sự kiện cho truy vấn thống kê/quản trị (không dùng trên đường xử lý request thường).
+// File text (mỗi đoạn < 2 GiB) được mmap và cắt thành các khúc ~-Dscan.chunkMB MiB tại ranh giới '\n'; mỗi khúc chạy trên
+// ForkJoinPool riêng (-Dscan.threads), kết quả từng khúc gộp lại theo thứ tự file/khúc.
+// Mỗi dòng được đưa cho visitor qua Line: chỉ ghi vị trí các field trên buffer đã map, không tạo String
+// cho cả dòng (cùng ngữ nghĩa với Store.parseEvent: key trùng lấy giá trị sau, "\;" không tách field).
+// File nhị phân (events.bin*) không cắt khúc được nên mỗi file là 1 tác vụ, giải mã bằng EventCodec.
+final class LogScanner {
+    private static final long CHUNK = Math.max(1, Long.getLong("scan.chunkMB", 4)) << 20;
+    static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger("scan.threads",
+            Runtime.getRuntime().availableProcessors()), pool -> {
+        var t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        t.setName("log-scan-" + t.getPoolIndex());
+        t.setDaemon(true);
+        return t;
+    }, null, false);
+
+    private LogScanner() {}
+
+    // acc tạo kết quả rỗng cho mỗi khúc, visit xử lý 1 dòng, merge gộp kết quả khúc sau vào khúc trước
+    static <R> R scan(List<Path> files, Supplier<R> acc, BiConsumer<R, Line> visit, BinaryOperator<R> merge) {
+        List<Callable<R>> tasks = new ArrayList<>();
+        for (Path f : files) {
+            if (!Files.exists(f)) continue;
+            if (f.getFileName().toString().contains(".bin")) { tasks.add(() -> scanBinary(f, acc, visit)); continue; }
+            try (FileChannel fc = FileChannel.open(f, StandardOpenOption.READ)) {
+                long size = fc.size();
+                if (size == 0) continue;
+                // mapping vẫn hợp lệ sau khi đóng channel; bỏ dòng cuối chưa ghi xong (chưa có '\n')
+                MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                while (size > 0 && mb.get((int) size - 1) != '\n') size--;
+                for (long start = 0; start < size; ) {
+                    long end = Math.min(size, start + CHUNK);
+                    while (end < size && mb.get((int) end - 1) != '\n') end++;
+                    int s = (int) start, e = (int) end;
+                    tasks.add(() -> scanChunk(mb, s, e, acc, visit));
+                    start = end;
+                }
+            } catch (IOException e) { throw new UncheckedIOException(e); }
+        }
+        R out = acc.get();
+        try {
+            for (Future<R> fu : POOL.invokeAll(tasks)) out = merge.apply(out, fu.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return out;
+    }
+
+    private static <R> R scanChunk(ByteBuffer buf, int start, int end, Supplier<R> acc, BiConsumer<R, Line> visit) {
+        R r = acc.get();
+        Line line = new Line();
+        int p = start;
+        while (p < end) {
+            int nl = p;
+            while (nl < end && buf.get(nl) != '\n') nl++;
+            int e = nl;
+            if (e > p && buf.get(e - 1) == '\r') e--;
+            if (e > p && buf.get(p) != '#') visit.accept(r, line.reset(buf, p, e));
+            p = nl + 1;
+        }
+        return r;
+    }
+
+    private static <R> R scanBinary(Path f, Supplier<R> acc, BiConsumer<R, Line> visit) throws IOException {
+        R r = acc.get();
+        Line line = new Line();
+        new EventCodec().read(f, s -> {
+            if (s.isEmpty() || s.charAt(0) == '#') return;
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            visit.accept(r, line.reset(ByteBuffer.wrap(b), 0, b.length));
+        });
+        return r;
+    }
+
+    // 1 dòng "kind=..;k=v;..." trên buffer; chỉ hợp lệ trong lời gọi visit hiện tại
+    static final class Line {
+        private ByteBuffer buf;
+        private int n;
+        private int[] keyOff = new int[12], keyLen = new int[12], valOff = new int[12], valLen = new int[12];
+
+        Line reset(ByteBuffer buf, int start, int end) {
+            this.buf = buf;
+            n = 0;
+            int p = start;
+            while (p < end) {
+                int s = p, eq = -1;
+                while (p < end && buf.get(p) != ';') {
+                    if (buf.get(p) == '\\' && p + 1 < end) { p += 2; continue; }
+                    if (buf.get(p) == '=' && eq < 0) eq = p;
+                    p++;
+                }
+                if (eq > s) add(s, eq - s, eq + 1, Math.min(p, end) - eq - 1);
+                p++;
+            }
+            return this;
+        }
+
+        private void add(int ko, int kl, int vo, int vl) {
+            if (n == keyOff.length) {
+                int m = n * 2;
+                keyOff = java.util.Arrays.copyOf(keyOff, m); keyLen = java.util.Arrays.copyOf(keyLen, m);
+                valOff = java.util.Arrays.copyOf(valOff, m); valLen = java.util.Arrays.copyOf(valLen, m);
+            }
+            keyOff[n] = ko; keyLen[n] = kl; valOff[n] = vo; valLen[n] = vl;
+            n++;
+        }
+
+        private int find(String k) {
+            int kl = k.length();
+            outer:
+            for (int i = n - 1; i >= 0; i--) {
+                if (keyLen[i] != kl) continue;
+                for (int j = 0; j < kl; j++) if (buf.get(keyOff[i] + j) != k.charAt(j)) continue outer;
+                return i;
+            }
+            return -1;
+        }
+
+        // Giá trị (đã bỏ escape) dưới dạng String; null nếu không có field
+        String get(String key) {
+            int i = find(key);
+            if (i < 0) return null;
+            byte[] b = new byte[valLen[i]];
+            buf.get(valOff[i], b);
+            String v = new String(b, StandardCharsets.UTF_8);
+            return v.indexOf('\\') < 0 ? v : v.replace("\\n","\n").replace("\\;",";").replace("\\\\","\\");
+        }
+
+        // So sánh giá trị với s mà không tạo String (giá trị có escape hoặc byte ngoài ASCII thì so qua get())
+        boolean is(String key, String s) {
+            int i = find(key);
+            if (i < 0 || s == null) return false;
+            int o = valOff[i], l = valLen[i];
+            for (int j = 0; j < l; j++) if (buf.get(o + j) == '\\' || buf.get(o + j) < 0) return s.equals(get(key));
+            if (l != s.length()) return false;
+            for (int j = 0; j < l; j++) if (buf.get(o + j) != s.charAt(j)) return false;
+            return true;
+        }
+
+        // Thời điểm ISO-8601 UTC ("2025-09-26T13:45:05.960922700Z") -> epoch millis; Long.MIN_VALUE nếu sai dạng
+        long millis(String key) {
+            int i = find(key);
+            if (i < 0 || valLen[i] < 20) return Long.MIN_VALUE;
+            int o = valOff[i];
+            if (buf.get(o + 4) != '-' || buf.get(o + 7) != '-' || buf.get(o + 10) != 'T'
+                    || buf.get(o + 13) != ':' || buf.get(o + 16) != ':') return Long.MIN_VALUE;
+            int y = digits(o, 4), mo = digits(o + 5, 2), d = digits(o + 8, 2);
+            int h = digits(o + 11, 2), mi = digits(o + 14, 2), s = digits(o + 17, 2);
+            if (y < 0 || mo < 1 || mo > 12 || d < 1 || h < 0 || mi < 0 || s < 0) return Long.MIN_VALUE;
+            int ms = 0;
+            if (buf.get(o + 19) == '.') {
+                for (int j = 0; j < 3; j++) {
+                    int c = o + 20 + j < o + valLen[i] ? buf.get(o + 20 + j) - '0' : 0;
+                    ms = ms * 10 + (c >= 0 && c <= 9 ? c : 0);
+                }
+            }
+            return ((days(y, mo, d) * 24 + h) * 60 + mi) * 60_000 + s * 1000L + ms;
+        }
+
+        private int digits(int off, int len) {
+            int v = 0;
+            for (int i = off; i < off + len; i++) {
+                int c = buf.get(i) - '0';
+                if (c < 0 || c > 9) return -1;
+                v = v * 10 + c;
+            }
+            return v;
+        }
+
+        // Số ngày từ 1970-01-01 theo lịch Gregory (thuật toán days_from_civil)
+        private static long days(int y, int m, int d) {
+            y -= m <= 2 ? 1 : 0;
+            long era = Math.floorDiv(y, 400);
+            long yoe = y - era * 400;
+            long doy = (153L * (m + (m > 2 ? -3 : 9)) + 2) / 5 + d - 1;
+            long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+            return era * 146097 + doe - 719468;
+        }
+    }
+
+    // Công cụ quản trị offline: tính lại thắng/thua/hòa của mọi user từ log (mặc định toàn bộ thời gian)
+    //   java server.LogScanner data/events.txt [fromMillis] [toMillis]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) { System.out.println("usage: LogScanner <events.txt|events.bin> [fromMillis] [toMillis]"); return; }
+        Path base = Path.of(args[0]);
+        long from = args.length > 1 ? Long.parseLong(args[1]) : Long.MIN_VALUE;
+        long to = args.length > 2 ? Long.parseLong(args[2]) : Long.MAX_VALUE;
+        List<Path> files = new ArrayList<>();
+        String prefix = base.getFileName() + ".";
+        Path dir = base.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path f : ds) if (f.getFileName().toString().substring(prefix.length()).matches("\\d+")) files.add(f);
+        }
+        files.sort((a, b) -> Long.compare(segNo(a, prefix), segNo(b, prefix)));
+        files.add(base);
+
+        long t0 = System.nanoTime();
+        Map<String,int[]> wl = scan(files, TreeMap::new, (m, line) -> {
+            if (!line.is("kind", "match")) return;
+            long ts = line.millis("ts");
+            if (ts < from || ts > to) return;
+            tally(m, line.get("x"), line.get("o"), line.get("winner"));
+        }, (a, b) -> {
+            b.forEach((u, v) -> a.merge(u, v, (p, q) -> new int[]{p[0] + q[0], p[1] + q[1], p[2] + q[2]}));
+            return a;
+        });
+        wl.forEach((u, v) -> System.out.println(u + "|" + v[0] + "|" + v[1] + "|" + v[2]));
+        System.out.printf("%d users, %d files, %.1f ms%n", wl.size(), files.size(), (System.nanoTime() - t0) / 1e6);
+    }
+
+    private static long segNo(Path f, String prefix) { return Long.parseLong(f.getFileName().toString().substring(prefix.length())); }
+
+    // Cộng 1 trận vào bảng user -> {thắng, thua, hòa} (trận bỏ dở không có người thắng thì bỏ qua)
+    static void tally(Map<String,int[]> m, String x, String o, String winner) {
+        if (winner == null || winner.isBlank()) return;
+        boolean draw = "draw".equalsIgnoreCase(winner);
+        for (String u : new String[]{x, o}) {
+            if (u == null || u.isBlank()) continue;
+            int[] v = m.computeIfAbsent(u, k -> new int[3]);
+            v[draw ? 2 : u.equals(winner) ? 0 : 1]++;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+// Hộp thư của 1 phòng (actor nhẹ): mọi lệnh gửi vào chạy lần lượt, không bao giờ 2 lệnh cùng lúc,
+// nhưng các phòng khác nhau chạy song song trên pool dùng chung. Không giữ luồng riêng cho phòng nào.
+final class Mailbox implements Runnable {
+    // Số lệnh tối đa xử lý mỗi lượt trước khi nhường pool cho phòng khác
+    private static final int BATCH = 32;
+
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    // true khi có luồng đang (hoặc sắp) xử lý hộp thư; CAS trên cờ này tạo quan hệ happens-before giữa các lượt
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    Mailbox(Executor executor) { this.executor = executor; }
+
+    // Gửi lệnh không chờ kết quả
+    void tell(Runnable task) {
+        queue.add(task);
+        schedule();
+    }
+
+    // Gửi lệnh và nhận kết quả qua future (hoàn tất trên luồng của pool)
+    <T> CompletableFuture<T> ask(Supplier<T> task) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        tell(() -> {
+            try { f.complete(task.get()); } catch (Throwable e) { f.completeExceptionally(e); }
+        });
+        return f;
+    }
+
+    // Hộp thư đang rảnh thì chạy luôn trên luồng gọi (khỏi chuyển luồng); bận thì trả false, không chờ
+    boolean tryRun(Runnable task) {
+        if (!tryEnter()) return false;
+        try { task.run(); }
+        finally { exit(); }
+        return true;
+    }
+
+    // Như tryRun nhưng người gọi tự chạy lệnh giữa tryEnter() == true và exit() (đường nóng khỏi tạo lambda mỗi request)
+    boolean tryEnter() { return scheduled.compareAndSet(false, true); }
+
+    void exit() { release(); }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) executor.execute(this);
+    }
+
+    private void release() {
+        scheduled.set(false);
+        // lệnh đến trong lúc đang chạy mà chưa ai nhận -> lên lịch lượt mới
+        if (!queue.isEmpty()) schedule();
+    }
+
+    @Override
+    public void run() {
+        try {
+            Runnable t;
+            for (int i = 0; i < BATCH && (t = queue.poll()) != null; i++) {
+                try { t.run(); } catch (Throwable e) { e.printStackTrace(); }
+            }
+        } finally {
+            release();
+        }
+    }
+
+    // Đo MOVE đồng thời trên nhiều phòng: mỗi luồng client chọn phòng ngẫu nhiên và đi 1 nước (đặt quân, xét thắng/hòa,
+    // ván xong thì reset) qua hộp thư của phòng như Core.handle (tryRun, bận thì ask + join) rồi qua synchronized(phòng):
+    //   java -cp bin server.Mailbox bench [số phòng] [số client] [giây mỗi chế độ]
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1 || !"bench".equals(args[0])) { System.out.println("usage: Mailbox bench [rooms] [clients] [seconds]"); return; }
+        int rooms = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int secs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                    Thread t = new Thread(r, "bench-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+        BenchRoom[] rs = new BenchRoom[rooms];
+        for (int i = 0; i < rooms; i++) rs[i] = new BenchRoom(new Mailbox(pool));
+        for (String mode : new String[]{"mailbox", "lock", "mailbox", "lock"}) { // lượt đầu mỗi chế độ để JIT nóng máy
+            java.util.concurrent.atomic.LongAdder moves = new java.util.concurrent.atomic.LongAdder();
+            long deadline = System.nanoTime() + secs * 1_000_000_000L;
+            Thread[] ts = new Thread[clients];
+            long t0 = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                ts[c] = new Thread(() -> {
+                    java.util.concurrent.ThreadLocalRandom rnd = java.util.concurrent.ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 256; i++) {
+                            BenchRoom r = rs[rnd.nextInt(rooms)];
+                            int idx = rnd.nextInt(9);
+                            if ("lock".equals(mode)) {
+                                synchronized (r) { r.move(idx); }
+                            } else if (!r.mailbox.tryRun(() -> r.move(idx))) {
+                                r.mailbox.ask(() -> { r.move(idx); return null; }).join();
+                            }
+                        }
+                        moves.add(256);
+                    }
+                });
+                ts[c].start();
+            }
+            for (Thread t : ts) t.join();
+            double s = (System.nanoTime() - t0) / 1e9;
+            long games = 0;
+            for (BenchRoom r : rs) games += r.games;
+            System.out.printf("%-8s %d rooms, %d clients: %.0f moves/s (%d games finished so far)%n", mode, rooms, clients, moves.sum() / s, games);
+        }
+    }
+
+    // Phòng rút gọn cho bench: chỉ bàn cờ và lượt đi, giống phần lõi của Core.doMove
+    private static final class BenchRoom {
+        final Mailbox mailbox;
+        final Board board = new Board(3, 3);
+        char turn = 'X';
+        long games;
+        BenchRoom(Mailbox mailbox) { this.mailbox = mailbox; }
+        void move(int idx) {
+            if (board.occupied(idx)) return;
+            board.place(idx, turn);
+            if (board.wins(turn, idx) || board.full()) { board.reset(); turn = 'X'; games++; return; }
+            turn = turn == 'X' ? 'O' : 'X';
+        }
+    }
+}
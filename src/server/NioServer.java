@@ -0,0 +1,339 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Transport non-blocking: 1 luồng accept + vài event-loop (Selector) dùng chung cho mọi kết nối.
+// Giao thức giữ nguyên như Handler: mỗi request/response là 1 dòng text UTF-8 kết thúc bằng '\n';
+// kết nối mở đầu bằng BinProto.HANDSHAKE thì dùng frame nhị phân (xem BinProto).
+public class NioServer {
+    // Giới hạn độ dài 1 dòng request; vượt quá thì đóng kết nối (chống client gửi rác)
+    private static final int MAX_LINE = 64 * 1024;
+    // Giao thức của kết nối, xác định bởi byte đầu tiên
+    private static final int UNKNOWN = 0, TEXT = 1, BINARY = 2;
+
+    private final int port;
+    private final Core core;
+    private final Loop[] loops;
+
+    public NioServer(int port, Core core, int loopCount) {
+        this.port = port;
+        this.core = core;
+        this.loops = new Loop[Math.max(1, loopCount)];
+    }
+
+    // Chạy vòng accept trên luồng hiện tại; các event-loop chạy trên luồng riêng
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel ss = ServerSocketChannel.open()) {
+            ss.bind(new InetSocketAddress(port), 1024);
+            ServerMain.ready();
+            int next = 0;
+            while (true) {
+                // accept blocking trên luồng chính, sau đó chia vòng tròn cho các loop
+                SocketChannel ch = ss.accept();
+                ch.configureBlocking(false);
+                ch.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(ch);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    // Một event-loop: sở hữu 1 Selector, xử lý đọc/ghi cho các kết nối được gán
+    private final class Loop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Kết nối có sự kiện đẩy từ luồng khác đang chờ loop này ghi ra
+        private final ConcurrentLinkedQueue<Conn> dirty = new ConcurrentLinkedQueue<>();
+        private volatile Thread thread;
+        // Bộ đệm đọc dùng chung cho cả loop (chỉ luồng loop chạm vào)
+        private final ByteBuffer readBuf = ByteBuffer.allocateDirect(16 * 1024);
+
+        Loop(Selector selector) { this.selector = selector; }
+
+        void register(SocketChannel ch) {
+            pending.add(ch);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = pending.poll()) != null) {
+                        Conn c = new Conn(ch, this);
+                        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                        System.out.println("[Server] Connected: " + c.remote);
+                    }
+                    Conn d;
+                    while ((d = dirty.poll()) != null) d.drainInbox();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        Conn c = (Conn) k.attachment();
+                        try {
+                            if (k.isValid() && k.isReadable()) c.onReadable(readBuf);
+                            if (k.isValid() && k.isWritable()) c.flush();
+                        } catch (IOException | CancelledKeyException e) {
+                            c.close();
+                        } catch (RuntimeException e) {
+                            // lỗi khi xử lý dữ liệu của 1 kết nối: đóng nó, không để lặp lại ở mỗi lần đọc
+                            e.printStackTrace();
+                            c.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Trạng thái 1 kết nối: phần dữ liệu đọc dở, hàng đợi ghi, token cuối cùng
+    private final class Conn implements Core.Sink {
+        final SocketChannel ch;
+        final Loop loop;
+        final String remote;
+        // Dữ liệu ghi từ luồng khác (EVT, phản hồi pipeline); chỉ luồng loop được ghi socket
+        final ConcurrentLinkedQueue<ByteBuffer> inbox = new ConcurrentLinkedQueue<>();
+        // Số buffer chưa ghi xong (inbox + outQ); push() bỏ đăng ký client khi vượt Handler.MAX_QUEUED_EVENTS
+        final AtomicInteger pending = new AtomicInteger();
+        SelectionKey key;
+        // Byte đã đọc nhưng chưa xử lý: dòng text dở hoặc frame nhị phân dở
+        byte[] acc = new byte[256];
+        int accLen = 0;
+        // Byte đầu tiên quyết định giao thức: BinProto.HANDSHAKE -> nhị phân, còn lại -> text
+        int mode = UNKNOWN;
+        final ArrayDeque<ByteBuffer> outQ = new ArrayDeque<>();
+        String lastToken = null;
+        volatile boolean closed = false;
+        // Chế độ pipeline: request chạy trên pool của Core, loop không bị chặn
+        boolean pipelined = false;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile boolean readPaused = false;
+        // Dùng lại cho mọi request đồng bộ trên kết nối (chỉ luồng loop chạm vào)
+        final ReqParser parser = new ReqParser();
+        final RespWriter writer = new RespWriter();
+        final RespMap resp = new RespMap();
+
+        Conn(SocketChannel ch, Loop loop) {
+            this.ch = ch;
+            this.loop = loop;
+            String r;
+            try { r = String.valueOf(ch.getRemoteAddress()); } catch (IOException e) { r = "?"; }
+            this.remote = r;
+        }
+
+        // Đọc hết dữ liệu đang có, gom vào acc rồi cắt thành dòng/frame để xử lý
+        void onReadable(ByteBuffer buf) throws IOException {
+            while (!readPaused && !closed) {
+                buf.clear();
+                int n = ch.read(buf);
+                if (n < 0) { close(); return; }
+                if (n == 0) return;
+                buf.flip();
+                if (mode == UNKNOWN) {
+                    if ((buf.get(buf.position()) & 0xFF) == BinProto.HANDSHAKE) { buf.get(); mode = BINARY; }
+                    else mode = TEXT;
+                }
+                // acc giữ được cả các dòng đủ chưa xử lý (lúc tạm ngừng); độ dài dòng được kiểm ở process()
+                if (accLen + buf.remaining() > acc.length) {
+                    acc = Arrays.copyOf(acc, Math.max(acc.length * 2, accLen + buf.remaining()));
+                }
+                int n2 = buf.remaining();
+                buf.get(acc, accLen, n2);
+                accLen += n2;
+                process();
+            }
+        }
+
+        // Xử lý các dòng/frame hoàn chỉnh trong acc; dừng khi tạm ngừng đọc (phần còn lại giữ nguyên)
+        void process() throws IOException {
+            int start = 0;
+            if (mode == TEXT) {
+                for (int i = 0; i < accLen && !closed && !readPaused; i++) {
+                    if (acc[i] != '\n') continue;
+                    parser.reset(acc, start, i - start);
+                    start = i + 1;
+                    if (!parser.blank()) dispatch(parser, 0);
+                }
+                // chỉ đo phần đuôi chưa có '\n' (dừng vì tạm ngừng thì trước nó còn các dòng đủ chờ xử lý)
+                int tail = accLen;
+                while (tail > start && acc[tail - 1] != '\n') tail--;
+                if (accLen - tail > MAX_LINE) { close(); return; }
+            } else {
+                while (!closed && !readPaused && accLen - start >= 2) {
+                    int len = ((acc[start] & 0xFF) << 8) | (acc[start + 1] & 0xFF);
+                    if (len < 5) { close(); return; }
+                    if (accLen - start < 2 + len) break;
+                    Map<String,String> req = BinProto.decode(ByteBuffer.wrap(acc, start + 2, len));
+                    if (req == null) { close(); return; } // frame hỏng: không để nó nằm lại trong acc
+                    start += 2 + len;
+                    dispatch(req, BinProto.opcode(req.get("cmd")));
+                }
+            }
+            if (closed || start == 0) return;
+            System.arraycopy(acc, start, acc, 0, accLen - start);
+            accLen -= start;
+        }
+
+        // Giống vòng lặp trong Handler.run(): nhớ token, gọi core, trả phản hồi
+        void dispatch(Map<String,String> req, int op) throws IOException {
+            if (!(req == parser && parser.valueEquals("token", lastToken))) {
+                String tok = req.get("token");
+                if (tok != null && !tok.isBlank()) lastToken = tok;
+            }
+
+            if ("PIPELINE".equals(req.get("cmd"))) {
+                pipelined = !"false".equals(req.get("on"));
+                write(encode(op, Handler.pipelineAck(req, pipelined)));
+                return;
+            }
+
+            if (pipelined) {
+                // quá nhiều request dở dang -> tạm ngừng đọc cho đến khi bớt (backpressure)
+                if (inFlight.incrementAndGet() >= Handler.MAX_IN_FLIGHT) pauseRead();
+                core.handleAsync(ReqParser.copyOf(req), this).whenComplete((r, ex) -> {
+                    inFlight.decrementAndGet();
+                    if (r != null) send(encode(op, r));
+                    else if (readPaused) send(null);
+                });
+                return;
+            }
+
+            resp.clear();
+            CompletableFuture<Map<String,String>> f = core.submit(req, resp, this);
+            if (!f.isDone()) {
+                // phòng đang bận xử lý lệnh khác: ngừng đọc tới khi có phản hồi để giữ thứ tự, loop không chờ
+                inFlight.incrementAndGet();
+                pauseRead();
+                f.whenComplete((r, ex) -> {
+                    inFlight.decrementAndGet();
+                    send(r != null ? encode(op, r) : null);
+                });
+                return;
+            }
+            if (mode == BINARY) { write(BinProto.encode(op, resp)); return; }
+            // ghi thẳng từ bộ đệm của writer; write() tự copy phần chưa gửi hết
+            writer.write(resp);
+            write(ByteBuffer.wrap(writer.buf, 0, writer.len));
+        }
+
+        ByteBuffer encode(int op, Map<String,String> res) {
+            if (mode == BINARY) return BinProto.encode(op, res);
+            return ByteBuffer.wrap((Core.encodeResponse(res) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void pauseRead() {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        // Gọi trên luồng loop khi số request dở dang đã giảm (không pipeline thì phải về 0)
+        void resumeRead() throws IOException {
+            if (!readPaused || inFlight.get() >= (pipelined ? Handler.MAX_IN_FLIGHT : 1)) return;
+            readPaused = false;
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            process();
+        }
+
+        // Core gọi khi có EVT cho phòng mà kết nối này SUBSCRIBE; client không đọc (hàng ghi đầy) thì bị
+        // hủy đăng ký thay vì để inbox/outQ phình không giới hạn
+        @Override
+        public void push(String line) {
+            if (pending.get() >= Handler.MAX_QUEUED_EVENTS) {
+                System.out.println("[Server] Slow subscriber dropped: " + remote);
+                core.onDisconnectSink(this);
+                return;
+            }
+            send(mode == BINARY ? BinProto.encodeEvent(line)
+                    : ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Gửi từ luồng bất kỳ; ngoài luồng loop thì xếp vào inbox và đánh thức loop
+        // (bb = null chỉ để đánh thức loop kiểm tra lại việc tiếp tục đọc)
+        void send(ByteBuffer bb) {
+            if (closed) return;
+            if (Thread.currentThread() == loop.thread) {
+                try {
+                    if (bb != null) write(bb);
+                } catch (IOException | CancelledKeyException e) { close(); return; }
+                // có thể đang ở giữa process(): để lượt sau của loop tiếp tục đọc
+                if (readPaused) { loop.dirty.add(this); loop.selector.wakeup(); }
+                return;
+            }
+            if (bb != null) { pending.incrementAndGet(); inbox.add(bb); }
+            loop.dirty.add(this);
+            loop.selector.wakeup();
+        }
+
+        void drainInbox() {
+            ByteBuffer bb;
+            try {
+                while (!closed && (bb = inbox.poll()) != null) { pending.decrementAndGet(); write(bb); }
+                if (!closed) resumeRead();
+            } catch (IOException | CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void write(ByteBuffer bb) throws IOException {
+            if (outQ.isEmpty()) {
+                ch.write(bb);
+                if (!bb.hasRemaining()) return;
+            }
+            if (bb.hasArray() && bb.array() == writer.buf) {
+                bb = ByteBuffer.wrap(Arrays.copyOfRange(bb.array(), bb.position(), bb.limit()));
+            }
+            outQ.add(bb);
+            pending.incrementAndGet();
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+
+        // Ghi phần còn tồn trong hàng đợi khi socket sẵn sàng ghi
+        void flush() throws IOException {
+            while (!outQ.isEmpty()) {
+                ByteBuffer bb = outQ.peek();
+                ch.write(bb);
+                if (bb.hasRemaining()) return;
+                outQ.poll();
+                pending.decrementAndGet();
+            }
+            key.interestOps(readPaused ? 0 : SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            // nếu client có token và thoát giữa chừng -> xử lý disconnect trong core
+            if (lastToken != null) core.onDisconnectToken(lastToken);
+            core.onDisconnectSink(this);
+            core.onDisconnect(ch.socket());
+            try { ch.close(); } catch (IOException ignored) {}
+            System.out.println("[Server] Disconnected: " + remote);
+        }
+    }
+}
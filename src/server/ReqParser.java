@@ -0,0 +1,346 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Parser request text dùng lại cho mỗi kết nối: chỉ ghi lại vị trí các field trên mảng byte
+// của dòng "REQ id=..;cmd=..;k=v", giá trị chỉ được tạo String khi Core thực sự get() tới.
+// Cùng ngữ nghĩa với Core.parseLine (khóa _verb, key trùng thì lấy giá trị sau, unesc giá trị).
+// Không an toàn luồng và chỉ hợp lệ tới lần reset() kế tiếp; cần giữ lâu thì copy sang Map khác.
+final class ReqParser extends AbstractMap<String,String> {
+    private byte[] buf;
+    private int verbOff, verbLen;
+    private int n;
+    private int[] keyOff = new int[16], keyLen = new int[16], valOff = new int[16], valLen = new int[16];
+    private String[] cache = new String[16];
+    // 2 String gần nhất của field cùng vị trí ở các dòng trước: token/room lặp lại giữa các request trên 1 kết nối,
+    // cmd thường xen kẽ MOVE/STATE, nên so byte rồi dùng lại thay vì tạo String mới mỗi dòng
+    private String[] last = new String[16], prev = new String[16];
+    private String verb, lastVerb;
+
+    // Ghi nhận các field của dòng buf[off, off+len) (đã bỏ '\n')
+    ReqParser reset(byte[] buf, int off, int len) {
+        this.buf = buf;
+        int end = off + len;
+        while (off < end && space(buf[off])) off++;
+        while (end > off && space(buf[end - 1])) end--;
+
+        for (int i = 0; i < n; i++) cache[i] = null;
+        n = 0;
+        verb = null;
+
+        int p = off;
+        while (p < end && !space(buf[p])) p++;
+        verbOff = off; verbLen = p - off;
+        while (p < end && space(buf[p])) p++;
+
+        // tách theo ';' (bỏ qua "\;" đã escape), mỗi phần lấy key trước dấu '=' đầu tiên
+        while (p < end) {
+            int s = p, eq = -1;
+            while (p < end && buf[p] != ';') {
+                if (buf[p] == '\\' && p + 1 < end) { p += 2; continue; }
+                if (buf[p] == '=' && eq < 0) eq = p;
+                p++;
+            }
+            if (eq > s) add(s, eq - s, eq + 1, p - eq - 1);
+            p++;
+        }
+        return this;
+    }
+
+    // Khoảng trắng ASCII (byte UTF-8 >= 0x80 là số âm, không được coi là khoảng trắng)
+    private static boolean space(byte b) { return b >= 0 && b <= ' '; }
+
+    private void add(int ko, int kl, int vo, int vl) {
+        if (n == keyOff.length) {
+            int m = n * 2;
+            keyOff = java.util.Arrays.copyOf(keyOff, m); keyLen = java.util.Arrays.copyOf(keyLen, m);
+            valOff = java.util.Arrays.copyOf(valOff, m); valLen = java.util.Arrays.copyOf(valLen, m);
+            cache = java.util.Arrays.copyOf(cache, m);
+            last = java.util.Arrays.copyOf(last, m); prev = java.util.Arrays.copyOf(prev, m);
+        }
+        keyOff[n] = ko; keyLen[n] = kl; valOff[n] = vo; valLen[n] = vl;
+        n++;
+    }
+
+    // Dòng rỗng (chỉ có khoảng trắng)
+    boolean blank() { return verbLen == 0 && n == 0; }
+
+    // Tìm field theo key (so sánh trực tiếp trên byte, từ cuối để key trùng lấy giá trị sau)
+    private int find(Object key) {
+        if (!(key instanceof String k)) return -1;
+        int kl = k.length();
+        outer:
+        for (int i = n - 1; i >= 0; i--) {
+            if (keyLen[i] != kl) continue;
+            int o = keyOff[i];
+            for (int j = 0; j < kl; j++) if (buf[o + j] != k.charAt(j)) continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    private String value(int i) {
+        String v = cache[i];
+        if (v == null) {
+            String l = last[i], q = prev[i];
+            if (l != null && plainEquals(valOff[i], valLen[i], l)) v = l;
+            else {
+                v = q != null && plainEquals(valOff[i], valLen[i], q) ? q : unesc(buf, valOff[i], valLen[i]);
+                prev[i] = l;
+                last[i] = v;
+            }
+            cache[i] = v;
+        }
+        return v;
+    }
+
+    // Giá trị số nguyên của field đọc thẳng trên byte (idx của MOVE đổi mỗi nước nên không dùng lại String được);
+    // def nếu không có field, dạng khác "-?[0-9]+" thì theo Integer.parseInt (có thể ném NumberFormatException)
+    int intValue(String key, int def) {
+        int i = find(key);
+        if (i < 0) return def;
+        int o = valOff[i], l = valLen[i], j = l > 0 && buf[o] == '-' ? 1 : 0;
+        if (j == l || l - j > 9) return Integer.parseInt(value(i));
+        int x = 0;
+        for (; j < l; j++) {
+            int d = buf[o + j] - '0';
+            if (d < 0 || d > 9) return Integer.parseInt(value(i));
+            x = x * 10 + d;
+        }
+        return buf[o] == '-' ? -x : x;
+    }
+
+    // buf[o, o+len) không có escape và trùng từng ký tự với s (byte UTF-8 >= 0x80 không khớp char nào -> false)
+    private boolean plainEquals(int o, int len, String s) {
+        if (len != s.length()) return false;
+        for (int j = 0; j < len; j++) {
+            byte b = buf[o + j];
+            if (b == '\\' || b == '%' || b != s.charAt(j)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String get(Object key) {
+        if ("_verb".equals(key)) {
+            if (verb == null) {
+                String l = lastVerb;
+                verb = lastVerb = l != null && plainEquals(verbOff, verbLen, l) ? l : new String(buf, verbOff, verbLen, StandardCharsets.UTF_8);
+            }
+            return verb;
+        }
+        int i = find(key);
+        return i < 0 ? null : value(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) { return "_verb".equals(key) || find(key) >= 0; }
+
+    // So sánh giá trị field với s (token lặp lại mỗi request: value() dùng lại String của dòng trước, không tạo mới)
+    boolean valueEquals(String key, String s) {
+        int i = find(key);
+        if (i < 0 || s == null) return false;
+        return value(i).equals(s);
+    }
+
+    @Override
+    public Set<Entry<String,String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override public int size() { return n + 1; }
+            @Override public Iterator<Entry<String,String>> iterator() {
+                return new Iterator<>() {
+                    int i = -1;
+                    @Override public boolean hasNext() { return i < n; }
+                    @Override public Entry<String,String> next() {
+                        if (i >= n) throw new NoSuchElementException();
+                        Entry<String,String> e = i < 0
+                                ? new SimpleImmutableEntry<>("_verb", get("_verb"))
+                                : new SimpleImmutableEntry<>(new String(buf, keyOff[i], keyLen[i], StandardCharsets.ISO_8859_1), value(i));
+                        i++;
+                        return e;
+                    }
+                };
+            }
+        };
+    }
+
+    // Ngược với Core.esc: "%20" -> ' ', "\n" -> xuống dòng, "\;" -> ';', "\\" -> '\'
+    static String unesc(byte[] b, int off, int len) {
+        int end = off + len;
+        boolean plain = true;
+        for (int i = off; i < end; i++) if (b[i] == '\\' || b[i] == '%') { plain = false; break; }
+        if (plain) return new String(b, off, len, StandardCharsets.UTF_8);
+
+        byte[] out = new byte[len];
+        int k = 0;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '%' && i + 2 < end && b[i + 1] == '2' && b[i + 2] == '0') { out[k++] = ' '; i += 2; }
+            else if (c == '\\' && i + 1 < end) {
+                byte d = b[++i];
+                if (d == 'n') out[k++] = '\n';
+                else if (d == ';' || d == '\\') out[k++] = d;
+                else { out[k++] = c; out[k++] = d; }
+            } else out[k++] = c;
+        }
+        return new String(out, 0, k, StandardCharsets.UTF_8);
+    }
+
+    static Map<String,String> copyOf(Map<String,String> req) {
+        return req instanceof ReqParser ? new java.util.LinkedHashMap<>(req) : req;
+    }
+
+    // Đo số byte cấp phát mỗi request MOVE/STATE: đường cũ (readLine -> split/replace -> LinkedHashMap ->
+    // StringBuilder + getBytes) so với ReqParser + RespWriter dùng lại:  java -cp bin server.ReqParser bench [số dòng]
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !"bench".equals(args[0])) { System.out.println("usage: ReqParser bench [lines]"); return; }
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        String token = java.util.UUID.randomUUID().toString();
+        byte[][] lines = new byte[256][];
+        for (int i = 0; i < lines.length; i++) {
+            String l = (i & 1) == 0 ? "REQ id=" + i + ";cmd=MOVE;token=" + token + ";room=R-AB12;idx=" + (i % 9)
+                    : "REQ id=" + i + ";cmd=STATE;token=" + token + ";room=R-AB12";
+            lines[i] = l.getBytes(StandardCharsets.UTF_8);
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().threadId();
+        ReqParser p = new ReqParser();
+        RespWriter w = new RespWriter();
+        RespMap resp = new RespMap();
+        long sink = 0;
+        for (int round = 0; round < 2; round++) { // vòng 1 để JIT nóng máy, in kết quả vòng 2
+            long a0 = mx.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                String line = new String(lines[i & 255], StandardCharsets.UTF_8);
+                Map<String,String> req = legacyParse(line);
+                Map<String,String> r = new java.util.LinkedHashMap<>();
+                fillResponse(req, r);
+                sink += (legacyEncode(r) + "\n").getBytes(StandardCharsets.UTF_8).length;
+            }
+            long a1 = mx.getThreadAllocatedBytes(tid), t1 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                byte[] b = lines[i & 255];
+                ReqParser req = p.reset(b, 0, b.length);
+                resp.clear();
+                fillResponse(req, resp);
+                sink += w.write(resp).len;
+            }
+            long a2 = mx.getThreadAllocatedBytes(tid), t2 = System.nanoTime();
+            if (round == 1) {
+                System.out.printf("%d requests: legacy %.1f B/req %.0f ns/req, flyweight %.1f B/req %.0f ns/req [%d]%n", n,
+                        (a1 - a0) / (double) n, (t1 - t0) / (double) n, (a2 - a1) / (double) n, (t2 - t1) / (double) n, sink & 1);
+            }
+        }
+        coreBench(n, mx, tid);
+        System.exit(0);
+    }
+
+    // Đường thật qua Core.handle (phiên + hộp thư phòng + putState) với parser/resp/writer dùng lại như NioServer:
+    // STATE lặp trên 1 phòng đang chơi; MOVE theo ván 3x3 X thắng ở nước thứ 5 rồi OFFER/ACCEPT_REPLAY chơi lại,
+    // chỉ tính 4 nước chưa kết thúc ván (nước thắng ghi log/bảng xếp hạng, không phải đường nóng)
+    private static void coreBench(int n, com.sun.management.ThreadMXBean mx, long tid) throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("reqbench");
+        Store store = new Store(dir.resolve("users.txt").toString(), dir.resolve("events.txt").toString());
+        store.initIfMissing();
+        store.start();
+        Core core = new Core(store);
+        String[] tok = new String[2];
+        for (int i = 0; i < 2; i++) {
+            core.handle(Core.parseLine("REQ id=0;cmd=REGISTER;user=bench" + i + ";pass=123"), null);
+            tok[i] = core.handle(Core.parseLine("REQ id=0;cmd=LOGIN;user=bench" + i + ";pass=123"), null).get("token");
+        }
+        String room = core.handle(Core.parseLine("REQ id=0;cmd=CREATE;token=" + tok[0]), null).get("room");
+        core.handle(Core.parseLine("REQ id=0;cmd=JOIN;token=" + tok[1] + ";room=" + room), null);
+
+        int[] cells = {0, 3, 1, 4, 2};
+        byte[][] state = new byte[256][], moves = new byte[256][];
+        for (int i = 0; i < 256; i++) {
+            state[i] = ("REQ id=" + i + ";cmd=STATE;token=" + tok[i & 1] + ";room=" + room).getBytes(StandardCharsets.UTF_8);
+            moves[i] = ("REQ id=" + i + ";cmd=MOVE;token=" + tok[(i % 5) & 1] + ";room=" + room + ";idx=" + cells[i % 5])
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] offer = ("REQ id=1;cmd=OFFER_REPLAY;token=" + tok[0] + ";room=" + room).getBytes(StandardCharsets.UTF_8);
+        byte[] accept = ("REQ id=2;cmd=ACCEPT_REPLAY;token=" + tok[1] + ";room=" + room).getBytes(StandardCharsets.UTF_8);
+
+        ReqParser p = new ReqParser();
+        RespWriter w = new RespWriter();
+        RespMap resp = new RespMap();
+        long sink = 0;
+        for (int round = 0; round < 2; round++) {
+            long a0 = mx.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                byte[] b = state[i & 255];
+                resp.clear();
+                sink += w.write(core.handle(p.reset(b, 0, b.length), resp, null)).len;
+            }
+            long a1 = mx.getThreadAllocatedBytes(tid), t1 = System.nanoTime();
+            long moveBytes = 0, moveNs = 0;
+            int done = 0;
+            for (int g = 0; done < n; g++) {
+                long a = mx.getThreadAllocatedBytes(tid), t = System.nanoTime();
+                for (int j = 0; j < 4; j++) {
+                    byte[] b = moves[g % 51 * 5 + j];
+                    resp.clear();
+                    sink += w.write(core.handle(p.reset(b, 0, b.length), resp, null)).len;
+                }
+                moveNs += System.nanoTime() - t;
+                moveBytes += mx.getThreadAllocatedBytes(tid) - a;
+                done += 4;
+                for (byte[] b : new byte[][]{moves[4], offer, accept}) {
+                    resp.clear();
+                    if (!"OK".equals(core.handle(p.reset(b, 0, b.length), resp, null).get("_status")))
+                        throw new IllegalStateException(new String(b, StandardCharsets.UTF_8) + " -> " + resp);
+                }
+            }
+            if (round == 1) {
+                System.out.printf("Core.handle: STATE %.1f B/req %.0f ns/req, MOVE %.1f B/req %.0f ns/req [%d]%n",
+                        (a1 - a0) / (double) n, (t1 - t0) / (double) n, moveBytes / (double) done, moveNs / (double) done, sink & 1);
+            }
+        }
+    }
+
+    // Giống phần đọc request/dựng phản hồi của doMove/doState: đọc cmd/token/room/idx, trả req + state + turn
+    private static void fillResponse(Map<String,String> req, Map<String,String> resp) {
+        resp.put("req", req.get("id"));
+        if ("MOVE".equals(req.get("cmd"))
+                && (req instanceof ReqParser p ? p.intValue("idx", -1) : Integer.parseInt(req.getOrDefault("idx", "-1"))) < 0)
+            resp.put("_status", "ERR");
+        if (req.get("token") == null || req.get("room") == null) resp.put("_status", "ERR");
+        resp.put("state", "X  O X   ");
+        resp.put("turn", "O");
+    }
+
+    // Parser/encoder text trước khi có ReqParser/RespWriter, giữ nguyên để so sánh
+    private static Map<String,String> legacyParse(String line) {
+        Map<String,String> m = new java.util.LinkedHashMap<>();
+        String[] parts = line.split("\\s+", 2);
+        m.put("_verb", parts[0]);
+        if (parts.length == 2) {
+            for (String kv : parts[1].split(";")) {
+                if (kv.isBlank()) continue;
+                int i = kv.indexOf('=');
+                if (i < 0) continue;
+                m.put(kv.substring(0, i), kv.substring(i + 1).replace("%20"," ").replace("\\n","\n").replace("\\;",";").replace("\\\\","\\"));
+            }
+        }
+        return m;
+    }
+
+    private static String legacyEncode(Map<String,String> map) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(map.getOrDefault("_status", "OK"));
+        for (Map.Entry<String,String> e : map.entrySet()) {
+            if (e.getKey().startsWith("_")) continue;
+            sb.append(' ').append(e.getKey()).append('=')
+              .append(e.getValue().replace("\\","\\\\").replace(";","\\;").replace("\n","\\n").replace(" ","%20")).append(';');
+        }
+        if (sb.charAt(sb.length()-1)==';') sb.setLength(sb.length()-1);
+        return sb.toString();
+    }
+}
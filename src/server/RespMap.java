@@ -0,0 +1,86 @@
+package server;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Map phản hồi dùng lại cho mỗi kết nối: key/value nằm trên 2 mảng song song theo thứ tự put (như LinkedHashMap,
+// put key đã có thì thay giá trị tại chỗ), clear() chỉ đặt lại số phần tử nên không tạo Entry mới mỗi request.
+// Core chỉ put vài key literal nên tìm tuyến tính (so == trước) nhanh hơn băm. Không an toàn luồng.
+final class RespMap extends AbstractMap<String,String> {
+    private String[] keys = new String[16], vals = new String[16];
+    private int n;
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < n; i++) if (keys[i] == key) return i;
+        for (int i = 0; i < n; i++) if (keys[i].equals(key)) return i;
+        return -1;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        int i = indexOf(key);
+        if (i >= 0) { String old = vals[i]; vals[i] = value; return old; }
+        if (n == keys.length) { keys = Arrays.copyOf(keys, n * 2); vals = Arrays.copyOf(vals, n * 2); }
+        keys[n] = key; vals[n] = value;
+        n++;
+        return null;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : vals[i];
+    }
+
+    @Override
+    public boolean containsKey(Object key) { return indexOf(key) >= 0; }
+
+    @Override
+    public String remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) return null;
+        String old = vals[i];
+        System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+        System.arraycopy(vals, i + 1, vals, i, n - i - 1);
+        n--;
+        keys[n] = vals[n] = null;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, n, null);
+        Arrays.fill(vals, 0, n, null);
+        n = 0;
+    }
+
+    @Override
+    public int size() { return n; }
+
+    // Truy cập theo vị trí cho RespWriter (khỏi tạo iterator/Entry)
+    String keyAt(int i) { return keys[i]; }
+    String valueAt(int i) { return vals[i]; }
+
+    @Override
+    public Set<Entry<String,String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override public int size() { return n; }
+            @Override public Iterator<Entry<String,String>> iterator() {
+                return new Iterator<>() {
+                    int i;
+                    @Override public boolean hasNext() { return i < n; }
+                    @Override public Entry<String,String> next() {
+                        if (i >= n) throw new NoSuchElementException();
+                        Entry<String,String> e = new SimpleImmutableEntry<>(keys[i], vals[i]);
+                        i++;
+                        return e;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import java.util.Map;
+
+// Mã hóa Map phản hồi thẳng ra mảng byte UTF-8 dùng lại cho mỗi kết nối (kèm '\n' cuối dòng),
+// cho kết quả giống hệt Core.encodeResponse nhưng không tạo String trung gian/chuỗi replace.
+// Mảng buf chỉ hợp lệ tới lần write() kế tiếp.
+final class RespWriter {
+    byte[] buf = new byte[512];
+    int len;
+
+    RespWriter write(Map<String,String> map) {
+        len = 0;
+        String status = map.get("_status");
+        putRaw(status == null ? "OK" : status);
+        boolean any = false;
+        if (map instanceof RespMap m) {
+            for (int i = 0; i < m.size(); i++) any = field(m.keyAt(i), m.valueAt(i), any);
+        } else {
+            for (Map.Entry<String,String> e : map.entrySet()) any = field(e.getKey(), e.getValue(), any);
+        }
+        put((byte) '\n');
+        return this;
+    }
+
+    // Ghi " k=v" (cách field trước bằng ';'), bỏ qua key nội bộ bắt đầu bằng '_'; trả về đã ghi field nào chưa
+    private boolean field(String k, String v, boolean any) {
+        if (k.startsWith("_")) return any;
+        if (any) put((byte) ';');
+        put((byte) ' ');
+        putRaw(k);
+        put((byte) '=');
+        putEscaped(v);
+        return true;
+    }
+
+    private void put(byte b) {
+        if (len == buf.length) buf = java.util.Arrays.copyOf(buf, len * 2);
+        buf[len++] = b;
+    }
+
+    private void putRaw(String s) {
+        for (int i = 0; i < s.length(); i++) i = putChar(s, i);
+    }
+
+    // Giống Core.esc: '\' -> "\\", ';' -> "\;", xuống dòng -> "\n", ' ' -> "%20"
+    private void putEscaped(String s) {
+        if (s == null) { putRaw("null"); return; }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> { put((byte) '\\'); put((byte) '\\'); }
+                case ';'  -> { put((byte) '\\'); put((byte) ';'); }
+                case '\n' -> { put((byte) '\\'); put((byte) 'n'); }
+                case ' '  -> { put((byte) '%'); put((byte) '2'); put((byte) '0'); }
+                default   -> i = putChar(s, i);
+            }
+        }
+    }
+
+    // Ghi ký tự ở vị trí i dạng UTF-8 (cặp surrogate ghi thành 4 byte); trả về vị trí ký tự cuối đã dùng
+    private int putChar(String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x80) { put((byte) c); return i; }
+        if (c < 0x800) { put((byte) (0xC0 | (c >> 6))); put((byte) (0x80 | (c & 0x3F))); return i; }
+        if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            put((byte) (0xF0 | (cp >> 18)));
+            put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            put((byte) (0x80 | (cp & 0x3F)));
+            return i + 1;
+        }
+        if (Character.isSurrogate(c)) { put((byte) '?'); return i; }
+        put((byte) (0xE0 | (c >> 12)));
+        put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        put((byte) (0x80 | (c & 0x3F)));
+        return i;
+    }
+}
@@ -8,22 +8,45 @@ import java.net.Socket;
 public class ServerMain {
     // Khai báo cổng server chạy 
     public static final int PORT = 5555;
+    // Mốc khởi động để đo thời gian tới lúc server sẵn sàng nhận kết nối (time-to-first-accept)
+    private static final long T0 = System.nanoTime();
+    static volatile long startupMs = -1;
+    private static Store store;
 
     public static void main(String[] args) {
-        System.out.println("[Server] Starting on port " + PORT);
+        // Chế độ transport: "nio" (mặc định, Selector), "virtual" (mỗi client 1 virtual thread)
+        // hoặc "pool" (thread-per-connection cũ)
+        String mode = args.length > 0 ? args[0] : System.getProperty("server.mode", "nio");
+        System.out.println("[Server] Starting on port " + PORT + " (mode=" + mode + ")");
 
         // Khởi tạo Store để quản lý user & event (từ file txt)
-        Store store = new Store("data/users.txt", "data/events.txt");
+        store = new Store("data/users.txt", "data/events.txt");
         store.initIfMissing();
+        store.start();
 
         // Khởi tạo Core (logic game) dựa trên dữ liệu từ Store
         Core core = new Core(store);
 
-        // Tạo thread pool để xử lý nhiều client song song
-        ExecutorService pool = Executors.newCachedThreadPool();
+        if ("nio".equalsIgnoreCase(mode)) {
+            // Số event-loop mặc định = số core CPU; chỉnh bằng -Dserver.loops=N
+            int loops = Integer.getInteger("server.loops", Runtime.getRuntime().availableProcessors());
+            try {
+                new NioServer(PORT, core, loops).run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        // Tạo thread pool để xử lý nhiều client song song; "virtual" dùng virtual thread
+        // nên vẫn giữ code blocking của Handler mà không tốn 1 platform thread/kết nối
+        ExecutorService pool = "virtual".equalsIgnoreCase(mode)
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
 
         // Khởi tạo ServerSocket để lắng nghe trên cổng PORT = 5555
         try (ServerSocket ss = new ServerSocket(PORT)) {
+            ready();
             while (true) {
                 // Chờ client kết nối (blocking)
                 Socket s = ss.accept();
@@ -37,4 +60,11 @@ public class ServerMain {
             pool.shutdownNow();
         }
     }
+
+    // Gọi ngay sau khi bind cổng (trước accept đầu tiên): in thời gian khởi động và nguồn nạp users
+    static void ready() {
+        startupMs = (System.nanoTime() - T0) / 1_000_000;
+        System.out.println("[Server] Ready to accept after " + startupMs + " ms (users: " + store.userCount()
+                + " from " + store.usersSource + " in " + store.usersLoadMs + " ms)");
+    }
 }
@@ -0,0 +1,150 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Bảng phiên đăng nhập: token (UUID 128 bit lưu dạng 2 long) -> user, hết hạn khi không dùng quá -Dsession.idleMin phút
+// hoặc sống quá -Dsession.maxHours giờ; mỗi user giữ tối đa -Dsession.maxPerUser phiên (đăng nhập mới đẩy phiên cũ nhất ra).
+// Tra token (gần như mọi request) chỉ là 1 lần get trên ConcurrentHashMap, không khóa.
+// Dọn phiên hết hạn bằng bánh xe thời gian (timer wheel): mỗi phiên nằm ở ô ứng với hạn của nó, mỗi nhịp
+// -Dsession.tickMs luồng dọn chỉ xét 1 ô; phiên chưa tới hạn (vừa được dùng lại) được xếp sang ô theo hạn mới.
+final class SessionManager {
+    private static final long IDLE_MS = TimeUnit.MINUTES.toMillis(Long.getLong("session.idleMin", 30));
+    private static final long MAX_MS = TimeUnit.HOURS.toMillis(Long.getLong("session.maxHours", 24));
+    private static final int MAX_PER_USER = Math.max(1, Integer.getInteger("session.maxPerUser", 5));
+    private static final long TICK_MS = Math.max(10, Long.getLong("session.tickMs", 1000));
+    private static final int SLOTS = 512; // 2^n: 1 vòng bánh xe = SLOTS * TICK_MS
+
+    private final Map<Key, Session> tokens = new ConcurrentHashMap<>();
+    // user -> các phiên (cũ -> mới); chỉ sửa trong compute của map nên không cần khóa riêng
+    private final Map<String, ArrayDeque<Session>> byUser = new ConcurrentHashMap<>();
+
+    // Phiên mới chờ luồng dọn đưa vào bánh xe; các ô chỉ luồng dọn đụng tới
+    private final ConcurrentLinkedQueue<Session> incoming = new ConcurrentLinkedQueue<>();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Session>[] wheel = (ArrayDeque<Session>[]) new ArrayDeque<?>[SLOTS];
+    private long lastTick = System.currentTimeMillis() / TICK_MS;
+
+    SessionManager() {
+        for (int i = 0; i < SLOTS; i++) wheel[i] = new ArrayDeque<>();
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        reaper.scheduleAtFixedRate(this::advance, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Cấp token mới cho user (dạng chuỗi UUID như trước để client không đổi)
+    String create(String user) {
+        UUID id = UUID.randomUUID();
+        Session s = new Session(id.getMostSignificantBits(), id.getLeastSignificantBits(), user, System.currentTimeMillis());
+        tokens.put(s, s);
+        byUser.compute(user, (k, q) -> {
+            if (q == null) q = new ArrayDeque<>();
+            q.addLast(s);
+            while (q.size() > MAX_PER_USER) drop(q.pollFirst());
+            return q;
+        });
+        incoming.add(s);
+        return id.toString();
+    }
+
+    // User của token, null nếu token sai dạng/không tồn tại/đã hết hạn; mỗi lần dùng gia hạn hạn chờ
+    String user(String token) {
+        Key k = PROBE.get();
+        Session s = parse(token, k) ? tokens.get(k) : null;
+        if (s == null) return null;
+        long now = System.currentTimeMillis();
+        if (s.deadline() <= now) return null; // luồng dọn sẽ gỡ ở lượt tới ô của nó
+        if (now - s.lastSeen >= 1000) s.lastSeen = now; // ghi thô theo giây cho đỡ ghi volatile mỗi request
+        return s.user;
+    }
+
+    int size() { return tokens.size(); }
+
+    private void drop(Session s) {
+        s.dead = true;
+        tokens.remove(s);
+    }
+
+    // Chạy trên luồng dọn: nhận phiên mới rồi xử lý các ô từ nhịp trước tới nhịp hiện tại
+    private void advance() {
+        try {
+            Session s;
+            while ((s = incoming.poll()) != null) schedule(s);
+            long now = System.currentTimeMillis(), tick = now / TICK_MS;
+            for (long t = lastTick + 1; t <= tick && t <= lastTick + SLOTS; t++) {
+                ArrayDeque<Session> slot = wheel[(int) (t & (SLOTS - 1))];
+                wheel[(int) (t & (SLOTS - 1))] = new ArrayDeque<>();
+                lastTick = t;
+                for (Session x : slot) {
+                    if (x.dead) continue;
+                    if (x.deadline() <= now) expire(x);
+                    else schedule(x);
+                }
+            }
+            lastTick = tick;
+        } catch (RuntimeException e) { e.printStackTrace(); }
+    }
+
+    // Đặt phiên vào ô đầu tiên được xét sau hạn hiện tại của nó (xa hơn 1 vòng thì ô đó xét lại nó ở vòng sau)
+    private void schedule(Session s) {
+        long t = Math.max(s.deadline() / TICK_MS + 1, lastTick + 1);
+        wheel[(int) (t & (SLOTS - 1))].add(s);
+    }
+
+    private void expire(Session s) {
+        drop(s);
+        byUser.computeIfPresent(s.user, (k, q) -> {
+            q.remove(s);
+            return q.isEmpty() ? null : q;
+        });
+    }
+
+    // "xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx" -> 2 long, không tạo UUID/String trung gian; null nếu sai dạng
+    // Ghi vào k (khóa dò dùng lại của luồng gọi, không tạo Key mỗi request); false nếu sai dạng
+    static boolean parse(String t, Key k) {
+        if (t == null || t.length() != 36) return false;
+        long hi = 0, lo = 0;
+        int n = 0;
+        for (int i = 0; i < 36; i++) {
+            char c = t.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') return false;
+                continue;
+            }
+            int d = Character.digit(c, 16);
+            if (d < 0) return false;
+            if (n++ < 16) hi = hi << 4 | d; else lo = lo << 4 | d;
+        }
+        k.hi = hi; k.lo = lo;
+        return true;
+    }
+
+    // Khóa dò tokens.get của mỗi luồng; chỉ Session (không bao giờ đổi hi/lo) được đưa vào map
+    private static final ThreadLocal<Key> PROBE = ThreadLocal.withInitial(() -> new Key(0, 0));
+
+    static class Key {
+        long hi, lo;
+        Key(long hi, long lo) { this.hi = hi; this.lo = lo; }
+        @Override public boolean equals(Object o) { return o instanceof Key k && k.hi == hi && k.lo == lo; }
+        @Override public int hashCode() { return Long.hashCode(hi ^ lo * 31); }
+    }
+
+    // Phiên cũng là khóa của chính nó trong tokens (khỏi giữ thêm 1 đối tượng khóa)
+    static final class Session extends Key {
+        final String user;
+        final long created;
+        volatile long lastSeen;
+        volatile boolean dead;
+        Session(long hi, long lo, String user, long now) { super(hi, lo); this.user = user; created = now; lastSeen = now; }
+        long deadline() { return Math.min(created + MAX_MS, lastSeen + IDLE_MS); }
+    }
+}
@@ -1,20 +1,110 @@
 package server;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 public class Store {
+    // Future của thao tác ghi hoàn tất khi bản ghi đã xuống OS (MEMORY, sập máy có thể mất) hoặc đã fsync (DISK)
+    public enum Durability { MEMORY, DISK }
+
+    // Chu kỳ gộp journal vào users.txt (giây), chỉnh bằng -Dstore.snapshotSec
+    private static final long SNAPSHOT_SEC = Long.getLong("store.snapshotSec", 60);
+    // Chu kỳ nén các đoạn events.txt.N đã đóng (phút), chỉnh bằng -Dstore.compactMin
+    private static final long COMPACT_MIN = Long.getLong("store.compactMin", 60);
+
     private final Path users, events;
+    // Ảnh nhị phân của bảng user (cùng seq với users.txt), nạp bằng mmap lúc khởi động
+    private final Path usersBin;
+    private static final int USERS_BIN_MAGIC = 0x54545455; // "TTTU"
+    private static final int USERS_CHUNK = 1 << 20;         // khúc users.txt cho mỗi tác vụ parse song song
+    // Thống kê lần nạp users lúc khởi động (ServerMain in ra cùng thời gian tới lúc nhận kết nối)
+    volatile long usersLoadMs;
+    volatile String usersSource = "none";
     private final Map<String,User> usersByName = new ConcurrentHashMap<>();
+    // Dùng ReentrantLock thay cho synchronized: I/O file trong lock không ghim (pin) virtual thread
+    private final ReentrantLock usersLock = new ReentrantLock();
+    // events.txt: ghi bất đồng bộ theo lô qua 1 FileChannel mở sẵn, chia đoạn events.txt.N khi đủ lớn
+    private final EventLog eventLog;
+    // Chat gần đây của các phòng đang mở (room -> vòng đệm), số tin giữ lại chỉnh bằng -Dchat.keep
+    private static final int CHAT_KEEP = Integer.getInteger("chat.keep", 100);
+    private final Map<String,ChatRing> chats = new ConcurrentHashMap<>();
+    // user -> các trận (cũ -> mới) để HISTORY không phải quét events.txt
+    private final Map<String,List<MatchRec>> historyByUser = new ConcurrentHashMap<>();
+    // Bảng xếp hạng: tập có thứ tự (thắng giảm, thua tăng, tên) + đếm user theo số trận thắng, cập nhật trong usersLock
+    private static final int TOP_K = 10;
+    private final ConcurrentSkipListSet<RankKey> ranking = new ConcurrentSkipListSet<>();
+    private final WinCounts winCounts = new WinCounts();
+    private volatile String topCache;   // chuỗi RANK đã dựng, null = cần dựng lại
+    private volatile RankKey topLast;   // khóa cuối của top-K đang cache (null nếu chưa đủ K user)
+    // Xong khi buildRanking chạy xong; chỉ thao tác đọc bảng xếp hạng chờ nó (Core cho RANK chạy trên workers tới lúc đó),
+    // còn cập nhật trước lúc dựng xong được gom vào rankPending (trong usersLock) và áp vào cuối buildRanking
+    private final CompletableFuture<Void> rankingReady = new CompletableFuture<>();
+    private boolean rankBuilt;                              // trong usersLock
+    private final Set<User> rankPending = new HashSet<>();  // trong usersLock
+
+    // Journal users (append-only) cạnh users.txt: mỗi dòng "seq|N|name|hash" (user mới) hoặc "seq|W|name" (L, D tương tự).
+    // users.txt là ảnh chụp định kỳ, dòng đầu "#seq=S": mọi bản ghi journal có seq <= S đã nằm trong ảnh.
+    private final Path journal;
+    private FileChannel journalOut;     // mở khi ghi lần đầu, chỉ luồng io dùng
+    private long seq;                   // seq của bản ghi journal cuối cùng (trong usersLock)
+    private volatile long snapSeq;      // seq đã gộp vào users.txt
+    // Luồng I/O riêng của journal: luồng request chỉ sửa bộ nhớ và xếp bản ghi (theo thứ tự seq) vào đây
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "store-io");
+        t.setDaemon(true);
+        return t;
+    });
+    // Luồng nền: chụp users.txt và nén log sự kiện
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "store-background");
+        t.setDaemon(true);
+        return t;
+    });
 
     public Store(String usersFile, String eventsFile) {
         this.users = Paths.get(usersFile);
         this.events = Paths.get(eventsFile);
+        this.journal = users.resolveSibling(users.getFileName() + ".journal");
+        this.usersBin = users.resolveSibling(users.getFileName().toString().replace(".txt", "") + ".bin");
+        this.eventLog = new EventLog(events);
+        // Khởi động = đọc ảnh chụp + phát lại journal phía sau nó
         loadUsers();
+        replayJournal();
+        loadHistoryIndex();
+    }
+
+    // Bật các việc nền sau khi Store đã dựng xong (không đưa this cho luồng khác từ trong constructor); gọi 1 lần.
+    // Bảng xếp hạng dựng trên luồng nền để cổng mở sớm; RANK chờ rankingReady, cập nhật thì gom lại chờ áp
+    public void start() {
+        background.execute(this::buildRanking);
+        background.scheduleWithFixedDelay(this::snapshot, SNAPSHOT_SEC, SNAPSHOT_SEC, TimeUnit.SECONDS);
+        background.scheduleWithFixedDelay(eventLog::compact, COMPACT_MIN, COMPACT_MIN, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "store-close"));
+    }
+
+    // Ghi nốt các bản ghi journal còn trong hàng đợi trước khi JVM thoát
+    void close() {
+        io.shutdown();
+        try { io.awaitTermination(2, TimeUnit.SECONDS); } catch (InterruptedException ignored) {}
     }
 
     public void initIfMissing() {
@@ -26,35 +116,292 @@ public class Store {
     }
 
     // ===== Users =====
+    // Ưu tiên users.bin nếu nó không cũ hơn users.txt (so seq ở header), không thì parse users.txt song song
     private void loadUsers() {
-        if (!Files.exists(users)) return;
+        long t0 = System.nanoTime();
+        if (loadUsersBin(textSnapshotSeq())) usersSource = "users.bin";
+        else if (loadUsersText()) usersSource = "users.txt";
+        usersLoadMs = (System.nanoTime() - t0) / 1_000_000;
+    }
+
+    // seq ở dòng đầu "#seq=S" của users.txt (-1 nếu thiếu file hoặc header)
+    private long textSnapshotSeq() {
+        if (!Files.exists(users)) return -1;
         try (BufferedReader br = Files.newBufferedReader(users, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.isBlank()) continue;
-                String[] p = line.split("\\|");
-                if (p.length<5) continue;
-                usersByName.put(p[0], new User(p[0], p[1], i(p[2]), i(p[3]), i(p[4])));
+            String first = br.readLine();
+            return first != null && first.startsWith("#seq=") ? Long.parseLong(first.substring(5).trim()) : -1;
+        } catch (IOException | NumberFormatException e) { return -1; }
+    }
+
+    // users.bin: int magic | long seq | int số user | mỗi user: name, hash (u16 độ dài + UTF-8), int W, L, D | int CRC32C
+    private boolean loadUsersBin(long minSeq) {
+        if (!Files.exists(usersBin)) return false;
+        try (FileChannel fc = FileChannel.open(usersBin, StandardOpenOption.READ)) {
+            long size = fc.size();
+            if (size < 20) return false;
+            MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C crc = new CRC32C();
+            crc.update(b.slice(0, (int) size - 4));
+            if (b.getInt(0) != USERS_BIN_MAGIC || (int) crc.getValue() != b.getInt((int) size - 4)) return false;
+            long s = b.getLong(4);
+            if (s < minSeq) return false;
+            int n = b.getInt(12);
+            b.position(16);
+            for (int k = 0; k < n; k++) {
+                String name = str(b), hash = str(b);
+                usersByName.put(name, new User(name, hash, b.getInt(), b.getInt(), b.getInt()));
             }
-        } catch (IOException e) { e.printStackTrace(); }
+            snapSeq = seq = s;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            usersByName.clear();
+            return false;
+        }
+    }
+
+    private static String str(ByteBuffer b) {
+        byte[] a = new byte[b.getShort() & 0xFFFF];
+        b.get(a);
+        return new String(a, StandardCharsets.UTF_8);
+    }
+
+    // mmap users.txt, cắt khúc tại '\n' và parse song song trên pool của LogScanner; gộp theo thứ tự khúc
+    // để user trùng tên vẫn lấy dòng sau như khi đọc tuần tự
+    private boolean loadUsersText() {
+        if (!Files.exists(users)) return false;
+        try (FileChannel fc = FileChannel.open(users, StandardOpenOption.READ)) {
+            long size = fc.size();
+            if (size == 0) return true;
+            MappedByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            List<Callable<List<User>>> tasks = new ArrayList<>();
+            for (long start = 0; start < size; ) {
+                long end = Math.min(size, start + USERS_CHUNK);
+                while (end < size && b.get((int) end - 1) != '\n') end++;
+                int s = (int) start, e = (int) end;
+                tasks.add(() -> parseUsers(b, s, e));
+                start = end;
+            }
+            if (tasks.size() == 1) for (User u : parseUsers(b, 0, (int) size)) usersByName.put(u.name, u); // file nhỏ: khỏi chuyển luồng
+            else for (Future<List<User>> f : LogScanner.POOL.invokeAll(tasks)) for (User u : f.get()) usersByName.put(u.name, u);
+            return true;
+        } catch (IOException | ExecutionException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
     }
 
-    private int i(String s){ try { return Integer.parseInt(s); } catch(Exception e){ return 0; } }
+    // 1 khúc users.txt: mỗi dòng "name|hash|W|L|D"; dòng "#seq=S" là header của ảnh chụp
+    private List<User> parseUsers(ByteBuffer b, int start, int end) {
+        List<User> out = new ArrayList<>();
+        int[] cut = new int[6];
+        for (int p = start; p < end; ) {
+            int nl = p;
+            while (nl < end && b.get(nl) != '\n') nl++;
+            int e = nl;
+            if (e > p && b.get(e - 1) == '\r') e--;
+            if (e > p && b.get(p) == '#') {
+                String h = text(b, p, e);
+                if (h.startsWith("#seq=")) { long s = Long.parseLong(h.substring(5).trim()); snapSeq = s; seq = s; }
+            } else if (e > p) {
+                // vị trí các dấu '|' (chỉ cần 4 dấu đầu)
+                int k = 0;
+                cut[k++] = p - 1;
+                for (int i = p; i < e && k < 5; i++) if (b.get(i) == '|') cut[k++] = i;
+                if (k == 5) {
+                    int dEnd = e;
+                    for (int i = cut[4] + 1; i < e; i++) if (b.get(i) == '|') { dEnd = i; break; }
+                    if (dEnd > cut[4] + 1) {
+                        String name = text(b, p, cut[1]);
+                        out.add(new User(name, text(b, cut[1] + 1, cut[2]), num(b, cut[2] + 1, cut[3]),
+                                num(b, cut[3] + 1, cut[4]), num(b, cut[4] + 1, dEnd)));
+                    }
+                }
+            }
+            p = nl + 1;
+        }
+        return out;
+    }
+
+    private static String text(ByteBuffer b, int from, int to) {
+        byte[] a = new byte[to - from];
+        b.get(from, a);
+        return new String(a, StandardCharsets.UTF_8);
+    }
 
-    private void persistUsers() {
-        try (BufferedWriter bw = Files.newBufferedWriter(users, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING)) {
-            for (User u : usersByName.values()) {
-                bw.write(u.name+"|"+u.pwHash+"|"+u.wins+"|"+u.losses+"|"+u.draws);
+    // Số nguyên trong buf[from, to), sai dạng hoặc tràn int thì 0
+    private static int num(ByteBuffer b, int from, int to) {
+        boolean neg = from < to && b.get(from) == '-';
+        long v = 0;
+        int i = neg ? from + 1 : from;
+        if (i == to) return 0;
+        for (; i < to; i++) {
+            int c = b.get(i) - '0';
+            if (c < 0 || c > 9 || v > Integer.MAX_VALUE) return 0;
+            v = v * 10 + c;
+        }
+        v = neg ? -v : v;
+        return v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ? 0 : (int) v;
+    }
+
+    // Phát lại journal: các file đã xoay vòng "users.txt.journal.S" (theo S tăng dần) rồi tới journal hiện tại,
+    // bỏ qua bản ghi đã có trong ảnh chụp
+    private void replayJournal() {
+        List<Path> files = new ArrayList<>(rotatedJournals());
+        files.sort(Comparator.comparingLong(this::rotatedSeq));
+        files.add(journal);
+        for (Path f : files) {
+            if (!Files.exists(f)) continue;
+            try (BufferedReader br = Files.newBufferedReader(f, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] p = line.split("\\|");
+                    if (p.length<3) continue; // dòng ghi dở lúc sập
+                    long s;
+                    try { s = Long.parseLong(p[0]); } catch (NumberFormatException e) { continue; }
+                    if (s <= snapSeq) continue;
+                    seq = Math.max(seq, s);
+                    if ("N".equals(p[1])) { if (p.length>=4) usersByName.putIfAbsent(p[2], new User(p[2], p[3], 0,0,0)); }
+                    else apply(usersByName.get(p[2]), p[1]);
+                }
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    private static void apply(User u, String res) {
+        if (u == null) return;
+        switch (res){ case "W" -> u.wins++; case "L" -> u.losses++; case "D" -> u.draws++; }
+    }
+
+    // Cấp seq cho 1 bản ghi journal (gọi trong usersLock) rồi giao việc ghi cho luồng io; không chờ đĩa
+    private CompletableFuture<Void> appendJournal(String rec, Durability d) {
+        byte[] line = (++seq + "|" + rec + "\n").getBytes(StandardCharsets.UTF_8);
+        return CompletableFuture.runAsync(() -> writeJournal(line, d), io);
+    }
+
+    // Chạy trên luồng io: write() xuống OS, DISK thì fsync thêm
+    private void writeJournal(byte[] line, Durability d) {
+        try {
+            if (journalOut == null) {
+                journalOut = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer b = ByteBuffer.wrap(line);
+            while (b.hasRemaining()) journalOut.write(b);
+            if (d == Durability.DISK) journalOut.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Chạy trên luồng io sau mọi bản ghi có seq <= s (hàng đợi io giữ thứ tự seq) -> "journal.S" chứa đúng chúng
+    private void rotateJournal(long s) {
+        try {
+            if (journalOut != null) { journalOut.close(); journalOut = null; }
+            if (Files.exists(journal)) Files.move(journal, journal.resolveSibling(journal.getFileName() + "." + s));
+        } catch (IOException e) { throw new UncheckedIOException(e); }
+    }
+
+    // Gộp journal vào users.txt mới. Trong lock chỉ chụp số liệu và xếp việc xoay journal sang file "journal.S"
+    // cho luồng io (không I/O khi giữ usersLock);
+    // ghi ảnh ra file tạm, fsync rồi rename nguyên tử đè users.txt, sau đó mới xóa journal cũ.
+    // Sập giữa chừng thì lần khởi động sau vẫn đủ dữ liệu: ảnh cũ + journal.S + journal mới (seq lọc trùng).
+    void snapshot() {
+        List<User> copy;
+        long s;
+        CompletableFuture<Void> rotated;
+        usersLock.lock();
+        try {
+            if (seq == snapSeq) return;
+            s = seq;
+            copy = new ArrayList<>(usersByName.size());
+            for (User u : usersByName.values()) copy.add(new User(u.name, u.pwHash, u.wins, u.losses, u.draws));
+            rotated = CompletableFuture.runAsync(() -> rotateJournal(s), io);
+        } finally {
+            usersLock.unlock();
+        }
+        try { rotated.join(); } catch (CompletionException e) { e.getCause().printStackTrace(); return; }
+
+        Path tmp = users.resolveSibling(users.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter bw = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                bw.write("#seq=" + s);
                 bw.newLine();
+                for (User u : copy) { bw.write(u.name+"|"+u.pwHash+"|"+u.wins+"|"+u.losses+"|"+u.draws); bw.newLine(); }
             }
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) { ch.force(true); }
+            Files.move(tmp, users, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            writeUsersBin(copy, s);
+            snapSeq = s;
+            for (Path f : rotatedJournals()) if (rotatedSeq(f) <= s) Files.deleteIfExists(f);
         } catch (IOException e) { e.printStackTrace(); }
     }
 
+    // Ghi users.bin sau users.txt: sập giữa 2 lần ghi thì users.bin cũ hơn và lần khởi động sau đọc users.txt
+    private void writeUsersBin(List<User> copy, long s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(copy.size() * 96 + 20);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(USERS_BIN_MAGIC);
+        out.writeLong(s);
+        out.writeInt(copy.size());
+        for (User u : copy) {
+            byte[] n = u.name.getBytes(StandardCharsets.UTF_8), h = u.pwHash.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(n.length); out.write(n);
+            out.writeShort(h.length); out.write(h);
+            out.writeInt(u.wins); out.writeInt(u.losses); out.writeInt(u.draws);
+        }
+        CRC32C crc = new CRC32C();
+        byte[] body = bytes.toByteArray();
+        crc.update(body);
+        ByteBuffer bb = ByteBuffer.allocate(body.length + 4).put(body).putInt((int) crc.getValue()).flip();
+        Path tmp = usersBin.resolveSibling(usersBin.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bb.hasRemaining()) ch.write(bb);
+            ch.force(true);
+        }
+        Files.move(tmp, usersBin, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private List<Path> rotatedJournals() {
+        List<Path> out = new ArrayList<>();
+        Path dir = journal.toAbsolutePath().getParent();
+        if (dir == null || !Files.isDirectory(dir)) return out;
+        String prefix = journal.getFileName() + ".";
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path f : ds) if (rotatedSeq(f) >= 0) out.add(f);
+        } catch (IOException e) { e.printStackTrace(); }
+        return out;
+    }
+
+    private long rotatedSeq(Path f) {
+        String n = f.getFileName().toString();
+        try { return Long.parseLong(n.substring(journal.getFileName().toString().length() + 1)); }
+        catch (RuntimeException e) { return -1; }
+    }
+
+    public int userCount(){ return usersByName.size(); }
     public boolean userExists(String name){ return usersByName.containsKey(name); }
     public void addUser(String name, String pwHash){
-        usersByName.put(name, new User(name, pwHash, 0,0,0));
-        persistUsers();
+        addUserIfAbsent(name, pwHash);
+    }
+    // Thêm user nguyên tử (putIfAbsent); trả false nếu tên đã tồn tại
+    public boolean addUserIfAbsent(String name, String pwHash){
+        return register(name, pwHash, Durability.MEMORY) != null;
+    }
+    // User có ngay trong bộ nhớ (LOGIN được); future xong khi bản ghi journal đạt mức d. null nếu tên đã tồn tại
+    public CompletableFuture<Void> register(String name, String pwHash, Durability d){
+        CompletableFuture<Void> done;
+        usersLock.lock();
+        try {
+            User u = new User(name, pwHash, 0,0,0);
+            if (usersByName.putIfAbsent(name, u) != null) return null;
+            rank(u);
+            done = appendJournal("N|" + name + "|" + pwHash, d);
+        } finally { usersLock.unlock(); }
         appendEvent("user", Map.of("u",name,"created",Instant.now().toString()));
+        return done;
     }
     public boolean checkLogin(String name, String pwHash){
         User u = usersByName.get(name); return u!=null && u.pwHash.equals(pwHash);
@@ -63,10 +410,73 @@ public class Store {
         User u = usersByName.get(name); if (u==null) return new int[]{0,0,0};
         return new int[]{u.wins,u.losses,u.draws};
     }
-    public void updateWL(String name, String res){
-        User u = usersByName.get(name); if (u==null) return;
-        switch (res){ case "W" -> u.wins++; case "L" -> u.losses++; case "D" -> u.draws++; }
-        persistUsers();
+    // Sửa số liệu trong bộ nhớ và xếp 1 dòng delta cho journal (users.txt được snapshotter ghi lại định kỳ);
+    // không chờ đĩa, future xong khi dòng đã được ghi xuống OS
+    public CompletableFuture<Void> updateWL(String name, String res){
+        User u = usersByName.get(name); if (u==null) return CompletableFuture.completedFuture(null);
+        if (!"W".equals(res) && !"L".equals(res) && !"D".equals(res)) return CompletableFuture.completedFuture(null);
+        usersLock.lock();
+        try {
+            apply(u, res);
+            rank(u);
+            return appendJournal(res + "|" + name, Durability.MEMORY);
+        } finally { usersLock.unlock(); }
+    }
+
+    // Đưa số liệu mới của u vào bảng xếp hạng (gọi trong usersLock); chưa dựng xong thì gom lại cho buildRanking
+    private void rank(User u) {
+        if (!rankBuilt) { rankPending.add(u); return; }
+        RankKey old = u.key, now = new RankKey(u.name, u.wins, u.losses, u.draws);
+        if (old != null) { ranking.remove(old); winCounts.add(old.wins, -1); }
+        ranking.add(now);
+        winCounts.add(now.wins, 1);
+        u.key = now;
+        // chuỗi top-K chỉ đổi khi user nằm trong top-K trước hoặc sau lần cập nhật này
+        RankKey last = topLast;
+        if (last == null || now.compareTo(last) <= 0 || (old != null && old.compareTo(last) <= 0)) topCache = null;
+    }
+
+    // Dựng bảng xếp hạng lúc khởi động: sắp xếp trước rồi chèn từ cuối lên, mỗi khóa mới luôn nằm ở đầu
+    // skip list nên rẻ hơn nhiều so với chèn theo thứ tự ngẫu nhiên của map.
+    // Chỉ giữ usersLock lúc chụp số liệu và lúc áp các cập nhật đã gom, không giữ trong lúc sắp xếp/chèn
+    private void buildRanking() {
+        try {
+            List<RankKey> keys = new ArrayList<>(usersByName.size());
+            usersLock.lock();
+            try {
+                for (User u : usersByName.values()) keys.add(u.key = new RankKey(u.name, u.wins, u.losses, u.draws));
+            } finally { usersLock.unlock(); }
+            RankKey[] a = keys.toArray(new RankKey[0]);
+            Arrays.parallelSort(a);
+            for (int i = a.length - 1; i >= 0; i--) { ranking.add(a[i]); winCounts.add(a[i].wins, 1); }
+            usersLock.lock();
+            try {
+                rankBuilt = true;
+                for (User u : rankPending) rank(u);
+                rankPending.clear();
+                topCache = null;
+            } finally { usersLock.unlock(); }
+        } finally {
+            rankingReady.complete(null); // lỗi giữa chừng cũng không để người chờ treo mãi
+        }
+    }
+
+    // Bảng xếp hạng đã dựng xong (RANK trả lời ngay, không phải chờ)
+    boolean rankingReady() { return rankingReady.isDone(); }
+
+    // Hạng của user = vị trí của nó theo đúng thứ tự danh sách RANK (thắng giảm, thua tăng, tên); 0 nếu không có user.
+    // Số user thắng nhiều hơn lấy từ cây Fenwick (O(log W)), chỉ duyệt nhóm cùng số trận thắng đứng trước nó
+    public int getRank(String name) {
+        User u = usersByName.get(name); if (u == null) return 0;
+        rankingReady.join();
+        usersLock.lock();
+        try {
+            RankKey k = u.key;
+            if (k == null) return 0;
+            int ahead = ranking.subSet(new RankKey("", k.wins, Integer.MIN_VALUE, 0), true, k, false).size();
+            return 1 + winCounts.above(k.wins) + ahead;
+        }
+        finally { usersLock.unlock(); }
     }
 
     // ===== Events =====
@@ -74,130 +484,170 @@ public class Store {
         appendEvent("room", Map.of("id",roomId,"host",host,"guest",guest,"status",status,"ts",Instant.now().toString()));
     }
 
-    public void appendMatch(String roomId, String x, String o, String winner, List<Integer> moves) {
+    // moves: các ô đã đi theo thứ tự, dạng "a,b,c" (Board.moveList); trả mã trận
+    public String appendMatch(String roomId, String x, String o, String winner, String moves) {
         Map<String,String> m = new LinkedHashMap<>();
-        m.put("id","M"+System.currentTimeMillis());
+        String id = "M"+System.currentTimeMillis();
+        m.put("id",id);
         m.put("room",roomId); m.put("x",x); m.put("o",o); m.put("winner",winner);
-        m.put("moves", joinInts(moves)); m.put("ts",Instant.now().toString());
+        m.put("moves", moves); m.put("ts",Instant.now().toString());
         appendEvent("match", m);
+        indexMatch(historyByUser, matchRec(id, x, o, winner, m.get("ts")));
+        return id;
     }
 
-    public void appendChat(String room, String from, String text) {
+    // Ghi log và đưa vào vòng đệm của phòng; trả seq của tin
+    public long appendChat(String room, String from, String text) {
         appendEvent("chat", Map.of("room",room,"from",from,"text",text,"ts",Instant.now().toString()));
+        return chats.computeIfAbsent(room, k -> new ChatRing(CHAT_KEEP)).add(from+": "+text);
     }
 
-    /** Trả dạng: matchId:opponent:result:timestamp|... */
-    public String getHistoryCompact(String user) {
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader br = Files.newBufferedReader(events, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (!line.startsWith("kind=match")) continue;
-                Map<String,String> m = parseEvent(line);
-
-                String x  = m.get("x");
-                String o  = m.get("o");
-                String id = m.get("id");
-                String ts = m.getOrDefault("ts", "");
-                String w  = m.getOrDefault("winner", "");
-
-                if (!(user.equals(x) || user.equals(o))) continue;
-
-                String opp = user.equals(x) ? o : x;
-                if (opp == null) opp = "";
-
-                String result;
-                if ("draw".equalsIgnoreCase(w)) {
-                    result = "Draw";
-                } else if (w == null || w.isBlank()) {
-                    result = "Aborted";
-                } else if (user.equals(w)) {
-                    result = "Win";
-                } else {
-                    result = "Loss";
-                }
+    // Phòng bị xóa: bỏ vòng đệm chat của nó
+    public void dropChat(String room) { chats.remove(room); }
 
-                if (id == null || id.isBlank()) id = "M"+System.currentTimeMillis();
+    // ===== Chỉ mục lịch sử: user -> các trận đã chơi (theo thứ tự ghi), dựng 1 lần lúc khởi động =====
+    // Quét song song (LogScanner): mỗi khúc log dựng chỉ mục riêng, gộp bằng cách nối danh sách theo thứ tự khúc
+    private void loadHistoryIndex() {
+        Map<String,List<MatchRec>> idx = eventLog.scanParallel("match", Long.MIN_VALUE, Long.MAX_VALUE, HashMap::new, (m, line) -> {
+            if (!line.is("kind", "match")) return;
+            indexMatch(m, matchRec(line.get("id"), line.get("x"), line.get("o"), line.get("winner"), line.get("ts")));
+        }, (a, b) -> {
+            b.forEach((u, l) -> a.merge(u, l, (p, q) -> { p.addAll(q); return p; }));
+            return a;
+        });
+        historyByUser.putAll(idx);
+    }
 
-                sb.append(id).append(":")
-                  .append(opp).append(":")
-                  .append(result).append(":")
-                  .append(ts).append("|");
-            }
-        } catch (IOException e) { e.printStackTrace(); }
-        return sb.toString();
+    private static MatchRec matchRec(String id, String x, String o, String winner, String ts) {
+        if (id == null || id.isBlank()) id = "M"+System.currentTimeMillis();
+        return new MatchRec(id, x, o, winner == null ? "" : winner, ts == null ? "" : ts);
+    }
+
+    private static void indexMatch(Map<String,List<MatchRec>> idx, MatchRec r) {
+        if (r.x != null) addToIndex(idx, r.x, r);
+        if (r.o != null && !r.o.equals(r.x)) addToIndex(idx, r.o, r);
+    }
+
+    private static void addToIndex(Map<String,List<MatchRec>> idx, String user, MatchRec r) {
+        List<MatchRec> list = idx.computeIfAbsent(user, k -> new ArrayList<>());
+        synchronized (list) { list.add(r); }
     }
 
-    /** Phiên bản cũ: chỉ có username:wins|... */
-    public String getLeaderboardCompact() {
-        List<User> list = new ArrayList<>(usersByName.values());
-        list.sort((a,b)->Integer.compare(b.wins, a.wins));
+    /** Trả dạng: matchId:opponent:result:timestamp|... */
+    public String getHistoryCompact(String user) { return getHistoryCompact(user, 0, null); }
+
+    /** Như trên nhưng phân trang: tối đa limit trận (0 = tất cả) ngay trước trận có id = before, cũ -> mới */
+    public String getHistoryCompact(String user, int limit, String before) {
+        List<MatchRec> list = historyByUser.get(user);
+        if (list == null) return "";
+        MatchRec[] page;
+        synchronized (list) {
+            int end = list.size();
+            if (before != null && !before.isBlank()) {
+                while (end > 0 && !before.equals(list.get(end-1).id)) end--;
+                if (end > 0) end--; // bỏ chính trận before
+            }
+            int start = limit > 0 ? Math.max(0, end - limit) : 0;
+            page = list.subList(start, end).toArray(new MatchRec[0]);
+        }
+
         StringBuilder sb = new StringBuilder();
-        for (int i=0;i<Math.min(10,list.size());i++) {
-            User u = list.get(i);
-            sb.append(u.name).append(":").append(u.wins).append("|");
+        for (MatchRec m : page) {
+            String opp = user.equals(m.x) ? m.o : m.x;
+            if (opp == null) opp = "";
+            String w = m.winner;
+
+            String result;
+            if ("draw".equalsIgnoreCase(w)) {
+                result = "Draw";
+            } else if (w == null || w.isBlank()) {
+                result = "Aborted";
+            } else if (user.equals(w)) {
+                result = "Win";
+            } else {
+                result = "Loss";
+            }
+
+            sb.append(m.id).append(":")
+              .append(opp).append(":")
+              .append(result).append(":")
+              .append(m.ts).append("|");
         }
         return sb.toString();
     }
 
+    // Duyệt K khóa đầu của tập xếp hạng; kết quả được cache tới khi top-K thay đổi
     public String getLeaderboardCompactV2() {
-        List<User> list = new ArrayList<>(usersByName.values());
-        list.sort((a,b)->Integer.compare(b.wins, a.wins));
-        StringBuilder sb = new StringBuilder();
-        for (int i=0;i<Math.min(10,list.size());i++) {
-            User u = list.get(i);
-            sb.append(u.name).append(":")
-              .append(u.wins).append(":")
-              .append(u.losses).append(":")
-              .append(u.draws).append("|");
-        }
-        return sb.toString();
+        String s = topCache;
+        if (s != null) return s;
+        rankingReady.join();
+        usersLock.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            RankKey last = null;
+            int n = 0;
+            for (RankKey k : ranking) {
+                if (n == TOP_K) break;
+                sb.append(k.name).append(":")
+                  .append(k.wins).append(":")
+                  .append(k.losses).append(":")
+                  .append(k.draws).append("|");
+                last = k; n++;
+            }
+            topLast = n == TOP_K ? last : null;
+            topCache = s = sb.toString();
+        } finally { usersLock.unlock(); }
+        return s;
+    }
+
+    // Thắng/thua/hòa của user tính lại từ các trận trong log có ts thuộc [from, to] (epoch ms); quét song song
+    public int[] recomputeWL(String user, long from, long to) {
+        Map<String,int[]> m = eventLog.scanParallel("match", from, to, HashMap::new, (acc, line) -> {
+            if (!line.is("kind", "match") || !(line.is("x", user) || line.is("o", user))) return;
+            long ts = line.millis("ts");
+            if (ts < from || ts > to) return;
+            LogScanner.tally(acc, line.get("x"), line.get("o"), line.get("winner"));
+        }, (a, b) -> {
+            b.forEach((u, v) -> a.merge(u, v, (p, q) -> new int[]{p[0] + q[0], p[1] + q[1], p[2] + q[2]}));
+            return a;
+        });
+        return m.getOrDefault(user, new int[3]);
     }
 
     public String getChatCompact(String room, int limit) {
-        List<String> lines = new ArrayList<>();
-        try (BufferedReader br = Files.newBufferedReader(events, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (!line.startsWith("kind=chat")) continue;
-                Map<String,String> m = parseEvent(line);
-                if (room.equals(m.get("room"))) {
-                    lines.add(m.get("from")+": "+m.getOrDefault("text",""));
-                }
-            }
-        } catch (IOException e) { e.printStackTrace(); }
-        int from = Math.max(0, lines.size()-limit);
         StringBuilder sb = new StringBuilder();
-        for (int i=from;i<lines.size();i++) sb.append(lines.get(i)).append("|");
+        getChatSince(room, 0, limit, sb);
         return sb.toString();
     }
 
+    // Ghi vào out các tin có seq > since (tối đa limit tin mới nhất, 0 = cả vòng đệm) dạng "from: text|";
+    // trả seq của tin mới nhất để client hỏi tiếp bằng since=
+    public long getChatSince(String room, long since, int limit, StringBuilder out) {
+        ChatRing r = room == null ? null : chats.get(room);
+        return r == null ? 0 : r.since(since, limit, out);
+    }
+
+    // Quét các đoạn log có match: chỉ dùng khi phòng chưa có kết quả trong bộ nhớ (Core.Room.outcome)
     public String getLastWinnerForRoom(String room) {
-        String winner = "";
-        try (BufferedReader br = Files.newBufferedReader(events, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (!line.startsWith("kind=match")) continue;
-                Map<String,String> m = parseEvent(line);
-                if (room.equals(m.get("room"))) winner = m.getOrDefault("winner","");
-            }
-        } catch (IOException e) { e.printStackTrace(); }
-        return winner==null?"":winner;
+        String[] winner = {""};
+        eventLog.scan("match", Long.MIN_VALUE, Long.MAX_VALUE, line -> {
+            Map<String,String> m = parseEvent(line);
+            if (room.equals(m.get("room"))) winner[0] = m.getOrDefault("winner","");
+        });
+        return winner[0]==null?"":winner[0];
     }
 
-    private synchronized void appendEvent(String kind, Map<String,String> kv) {
-        try (BufferedWriter bw = Files.newBufferedWriter(events, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("kind=").append(kind).append(';');
-            for (Map.Entry<String,String> e : kv.entrySet()) {
-                sb.append(e.getKey()).append('=').append(esc(e.getValue())).append(';');
-            }
-            bw.write(sb.toString());
-            bw.newLine();
-        } catch (IOException e) { e.printStackTrace(); }
+    // Chỉ xếp dòng vào EventLog; luồng ghi của nó gom lô và ghi xuống events.txt
+    private void appendEvent(String kind, Map<String,String> kv) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("kind=").append(kind).append(';');
+        for (Map.Entry<String,String> e : kv.entrySet()) {
+            sb.append(e.getKey()).append('=').append(esc(e.getValue())).append(';');
+        }
+        eventLog.append(sb.toString());
     }
 
-    private static Map<String,String> parseEvent(String line) {
+    static Map<String,String> parseEvent(String line) {
         Map<String,String> m = new LinkedHashMap<>();
         for (String kv : line.split(";")) {
             if (kv.isBlank()) continue;
@@ -208,17 +658,112 @@ public class Store {
         return m;
     }
 
-    private static String joinInts(List<Integer> moves) {
-        StringBuilder sb = new StringBuilder();
-        for (int i=0;i<moves.size();i++){ if(i>0) sb.append(','); sb.append(moves.get(i)); }
-        return sb.toString();
+    static String esc(String v){ return v.replace("\\","\\\\").replace(";","\\;").replace("\n","\\n"); }
+    private static String unesc(String v){ return v.replace("\\n","\n").replace("\\;",";").replace("\\\\","\\"); }
+
+    // 1 trận trong chỉ mục lịch sử (dùng chung cho cả 2 người chơi)
+    static class MatchRec {
+        final String id, x, o, winner, ts;
+        MatchRec(String id,String x,String o,String w,String ts){ this.id=id; this.x=x; this.o=o; winner=w; this.ts=ts; }
     }
 
-    private static String esc(String v){ return v.replace("\\","\\\\").replace(";","\\;").replace("\n","\\n"); }
-    private static String unesc(String v){ return v.replace("\\n","\n").replace("\\;",";").replace("\\\\","\\"); }
+    // Vòng đệm các tin chat gần nhất của 1 phòng; tin thứ s (s >= 1) nằm ở lines[(s-1) % n]
+    static class ChatRing {
+        private final String[] lines;
+        private long seq;
+        ChatRing(int n){ lines = new String[Math.max(1, n)]; }
+        synchronized long add(String line){ lines[(int) (seq % lines.length)] = line; return ++seq; }
+        synchronized long since(long after, int limit, StringBuilder out){
+            long from = Math.max(after, seq - lines.length);
+            if (limit > 0) from = Math.max(from, seq - limit);
+            for (long s = from + 1; s <= seq; s++) out.append(lines[(int) ((s - 1) % lines.length)]).append('|');
+            return seq;
+        }
+    }
+
+    // Kiểm tra RANK gọi ngay sau khi dựng Store (bảng xếp hạng còn đang dựng trên luồng nền):
+    //   java -cp bin server.Store check [sốUser]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || !"check".equals(args[0])) { System.out.println("usage: Store check [users]"); return; }
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        Path dir = Files.createTempDirectory("store-check");
+        Random rnd = new Random(42);
+        List<RankKey> all = new ArrayList<>(n);
+        StringBuilder sb = new StringBuilder(n * 32);
+        for (int i = 0; i < n; i++) {
+            RankKey k = new RankKey("u" + i, rnd.nextInt(1000), rnd.nextInt(1000), rnd.nextInt(10));
+            all.add(k);
+            sb.append(k.name).append("|h|").append(k.wins).append('|').append(k.losses).append('|').append(k.draws).append('\n');
+        }
+        Files.writeString(dir.resolve("users.txt"), sb);
+        Collections.sort(all);
+        StringBuilder want = new StringBuilder();
+        for (int i = 0; i < Math.min(TOP_K, n); i++) {
+            RankKey k = all.get(i);
+            want.append(k.name).append(":").append(k.wins).append(":").append(k.losses).append(":").append(k.draws).append("|");
+        }
+        int bad = 0;
+        Store s = new Store(dir.resolve("users.txt").toString(), dir.resolve("events.txt").toString());
+        s.start();
+        String got = s.getLeaderboardCompactV2();
+        if (!want.toString().equals(got)) { bad++; System.out.println("FAIL RANK right after start: " + got); }
+        // myRank phải khớp vị trí trong danh sách RANK (kể cả khi đồng số trận thắng)
+        for (int i = 0; i < n; i += Math.max(1, n / 1000)) {
+            if (s.getRank(all.get(i).name) != i + 1) { bad++; System.out.println("FAIL myRank of #" + (i + 1) + ": " + s.getRank(all.get(i).name)); break; }
+        }
+        // cập nhật ngay sau khi dựng Store không được mất
+        Store s2 = new Store(dir.resolve("users.txt").toString(), dir.resolve("events.txt").toString());
+        s2.start();
+        String last = all.get(n - 1).name;
+        for (int i = 0; i < 2000; i++) s2.updateWL(last, "W");
+        if (!s2.getLeaderboardCompactV2().startsWith(last + ":")) { bad++; System.out.println("FAIL update before ranking ready: " + s2.getLeaderboardCompactV2()); }
+        s.close(); s2.close();
+        System.out.println(bad == 0 ? "ok" : bad + " failed");
+        if (bad > 0) System.exit(1);
+    }
+
+    // Khóa bất biến trong bảng xếp hạng: thắng giảm dần, thua tăng dần, rồi theo tên
+    static final class RankKey implements Comparable<RankKey> {
+        final String name; final int wins, losses, draws;
+        RankKey(String n,int w,int l,int d){ name=n; wins=w; losses=l; draws=d; }
+        @Override public int compareTo(RankKey o) {
+            if (wins != o.wins) return Integer.compare(o.wins, wins);
+            if (losses != o.losses) return Integer.compare(losses, o.losses);
+            return name.compareTo(o.name);
+        }
+    }
+
+    // Cây Fenwick đếm số user theo số trận thắng: above(w) = số user thắng > w, O(log W)
+    static class WinCounts {
+        private int[] cnt = new int[64], tree = new int[65];
+        private int total;
+        void add(int w, int d) {
+            if (w >= cnt.length) grow(w);
+            cnt[w] += d; total += d;
+            for (int i = w + 1; i < tree.length; i += i & -i) tree[i] += d;
+        }
+        int above(int w) {
+            int s = 0;
+            for (int i = Math.min(w + 1, cnt.length); i > 0; i -= i & -i) s += tree[i];
+            return total - s;
+        }
+        // Hiếm khi xảy ra: gấp đôi kích thước và dựng lại cây từ mảng đếm
+        private void grow(int w) {
+            int n = cnt.length;
+            while (n <= w) n *= 2;
+            cnt = Arrays.copyOf(cnt, n);
+            tree = new int[n + 1];
+            for (int i = 1; i <= n; i++) {
+                tree[i] += cnt[i - 1];
+                int j = i + (i & -i);
+                if (j <= n) tree[j] += tree[i];
+            }
+        }
+    }
 
     static class User {
         final String name, pwHash; int wins, losses, draws;
+        RankKey key; // khóa hiện tại trong ranking
         User(String n,String p,int w,int l,int d){ name=n; pwHash=p; wins=w; losses=l; draws=d; }
     }
 }
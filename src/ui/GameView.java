@@ -8,7 +8,6 @@ import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.util.Arrays;
 
 public class GameView extends JFrame {
     private final Net net;
@@ -36,8 +35,8 @@ public class GameView extends JFrame {
     private final JLabel toast = new JLabel("", SwingConstants.LEFT);
     private Timer toastTimer;
 
-    // Poll
-    private Timer poller;
+    // Sự kiện đẩy (SUBSCRIBE); true khi cửa sổ đã đóng để bỏ qua EVT đến muộn
+    private boolean closed = false;
 
     // Room / state
     private char myMark = '?';
@@ -58,9 +57,7 @@ public class GameView extends JFrame {
     private String lastOpponent = null;
 
     // Chat filtering
-    private boolean chatSuppressed = false; // không fetch chat khi chưa có đối thủ
-    private boolean chatBaselineSet = false;
-    private int chatBaselineCount = 0;      // số dòng chat cần bỏ qua (log cũ của phòng)
+    private boolean chatSuppressed = false; // bỏ qua chat khi chưa có đối thủ
 
     // Colors
     private static final Color BG_ROOT = new Color(0xF5F6FA);
@@ -168,7 +165,7 @@ public class GameView extends JFrame {
         btnReplay.addActionListener(e -> onReplayClicked());
         addWindowListener(new WindowAdapter() { @Override public void windowClosing(WindowEvent e) { confirmExit(); }});
 
-        // Init & start polling
+        // Init & subscribe
         initRoomInfo();
 
         // ===== Opponent & Chat init =====
@@ -177,20 +174,16 @@ public class GameView extends JFrame {
         lastOpponent = (opp == null || opp.isBlank()) ? null : opp;
         opponentQuitPopupShown = false;
 
-        // 🚩 baseline chat
-        String baseResp = net.send("cmd=CHATLOG;token=" + net.token + ";room=" + roomId);
-        String baseCompact = decode(kv(baseResp, "log"));
-        chatBaselineCount = countChatItems(baseCompact);
-        chatBaselineSet = true;
-
+        // Chat chỉ nhận qua EVT sau khi SUBSCRIBE nên log cũ của phòng không hiện lại
         chatSuppressed = !opponentWasHere;
         chatLog.setText("");
 
         showToast(username + " đã vào " + roomId);
 
-        poller = new Timer(600, e -> pollState());
-        poller.start();
-        pollState();
+        // Server đẩy EVT khi phòng thay đổi -> không cần poll STATE/CHATLOG mỗi 600ms
+        net.setEventListener(evt -> SwingUtilities.invokeLater(() -> onRoomEvent(evt)));
+        net.send("cmd=SUBSCRIBE;token="+net.token+";room="+roomId);
+        syncState();
     }
 
     // ===== UI helpers =====
@@ -255,11 +248,32 @@ public class GameView extends JFrame {
         showToast("Đã gửi lời mời chơi lại...");
     }
 
-    private void pollState() {
-        // 1) Đồng bộ host/guest/myMark
+    // Đồng bộ đầy đủ 1 lần (sau SUBSCRIBE); các thay đổi sau đó đến qua onRoomEvent
+    private void syncState() {
         String info = net.send("cmd=ROOMINFO;token="+net.token+";room="+roomId);
-        host  = decode(kv(info,"host"));
-        guest = decode(kv(info,"guest"));
+        String resp = net.send("cmd=STATE;token="+net.token+";room="+roomId);
+        applyRoomUpdate(decode(kv(info,"host")), decode(kv(info,"guest")), resp);
+    }
+
+    // EVT room=...;type=...;host=...;guest=...;status=...;turn=...;state=... (+ end/winner/replay...)
+    private void onRoomEvent(String evt) {
+        if (closed) return;
+        if (!roomId.equals(decode(kv(evt,"room")))) return;
+        String type = decode(kv(evt,"type"));
+        if ("chat".equals(type)) {
+            if (chatSuppressed) return;
+            String line = decode(kv(evt,"from")) + ": " + decode(kv(evt,"text"));
+            chatLog.append(chatLog.getDocument().getLength() == 0 ? line : "\n" + line);
+            chatLog.setCaretPosition(chatLog.getDocument().getLength());
+            return;
+        }
+        applyRoomUpdate(decode(kv(evt,"host")), decode(kv(evt,"guest")), evt);
+    }
+
+    private void applyRoomUpdate(String newHost, String newGuest, String resp) {
+        // 1) Đồng bộ host/guest/myMark
+        host  = newHost;
+        guest = newGuest;
         char newMark = username.equals(host) ? 'X' : (username.equals(guest) ? 'O' : '?');
         if (newMark != myMark) myMark = newMark;
 
@@ -273,25 +287,12 @@ public class GameView extends JFrame {
             (lastOpponent != null && (normOpp == null || !lastOpponent.equals(normOpp)))) {
 
             lastOpponent = normOpp;
-
-            if (normOpp != null) {
-                String baseResp = net.send("cmd=CHATLOG;token="+net.token+";room="+roomId);
-                String baseCompact = decode(kv(baseResp,"log"));
-                chatBaselineCount = countChatItems(baseCompact);
-                chatBaselineSet = true;
-                chatSuppressed = false;
-            } else {
-                chatBaselineSet = false;
-                chatBaselineCount = 0;
-                chatSuppressed = true;
-            }
+            chatSuppressed = (normOpp == null);
             chatLog.setText("");
             opponentQuitPopupShown = false;
         }
 
         // 3) State & UI
-        String resp = net.send("cmd=STATE;token="+net.token+";room="+roomId);
-
         // Lưu trạng thái tick trước, sau đó mới cập nhật từ resp
         String prevStatus = lastStatus;
         applyServerResp(resp); // cập nhật playingNow/ended/sawLegitEnd & lastStatus
@@ -310,8 +311,6 @@ public class GameView extends JFrame {
             }
             chatLog.setText("");
             chatSuppressed = true;
-            chatBaselineSet = false;
-            chatBaselineCount = 0;
         }
         opponentWasHere = opponentNowPresent;
 
@@ -325,7 +324,8 @@ public class GameView extends JFrame {
             opponentQuitPopupShown = false;
             showToast("Ván mới đã bắt đầu!");
         } else if (resp.contains("replayDeclined=true")) {
-            showToast("Đối thủ đã từ chối chơi lại.");
+            String offerer = decode(kv(resp,"offerer"));
+            if (offerer.isEmpty() || username.equals(offerer)) showToast("Đối thủ đã từ chối chơi lại.");
             replayDialogOpen = false;
         } else if (resp.contains("offerReplay=true")) {
             String from = decode(kv(resp,"from"));
@@ -349,18 +349,6 @@ public class GameView extends JFrame {
                 });
             }
         }
-
-        // 6) Chat fetch
-        if (!chatSuppressed) {
-            String clog = net.send("cmd=CHATLOG;token="+net.token+";room="+roomId);
-            String compact = decode(kv(clog, "log"));
-            String[] items = compact.isEmpty() ? new String[0] : compact.split("\\|");
-            int n = items.length;
-            int start = chatBaselineSet ? Math.min(chatBaselineCount, n) : 0;
-            String view = (start >= n) ? "" : String.join("\n", Arrays.copyOfRange(items, start, n));
-            chatLog.setText(view);
-            chatLog.setCaretPosition(chatLog.getDocument().getLength());
-        }
     }
 
     private void applyServerResp(String resp) {
@@ -479,7 +467,9 @@ public class GameView extends JFrame {
         try { if (sendForfeit) net.send("cmd=LEAVE;token="+net.token+";room="+roomId); }
         catch (Exception ignore) {}
 
-        if (poller != null) poller.stop();
+        closed = true;
+        net.setEventListener(null);
+        try { net.send("cmd=UNSUBSCRIBE;token="+net.token); } catch (Exception ignore) {}
         dispose();
 
         SwingUtilities.invokeLater(() -> {
@@ -562,9 +552,4 @@ public class GameView extends JFrame {
                 .replace("\\\\","\\");
     }
     private static String esc(String s){ return s.replace(";", "\\;"); }
-
-    private static int countChatItems(String compact) {
-        if (compact == null || compact.isEmpty()) return 0;
-        return compact.split("\\|", -1).length - (compact.endsWith("|") ? 1 : 0);
-    }
 }
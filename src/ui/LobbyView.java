@@ -13,7 +13,9 @@ import java.awt.event.ActionEvent;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EventObject;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 public class LobbyView extends JFrame {
@@ -26,6 +28,11 @@ public class LobbyView extends JFrame {
 
     private Timer poller;
 
+    // Bản sao sảnh phía client (mã phòng -> dòng "id,host,guest,status") và version tương ứng;
+    // lần poll sau gửi since=version để chỉ nhận phần thay đổi (-1 = chưa có, xin cả danh sách)
+    private final LinkedHashMap<String, String> lobbyRows = new LinkedHashMap<>();
+    private long lobbyVersion = -1;
+
     public LobbyView(Net net, String username) {
         super("Sảnh chờ • " + username);
         this.net = net; this.username = username;
@@ -214,8 +221,28 @@ public class LobbyView extends JFrame {
 
     // ===== Networking =====
     private void refreshRooms() {
-        String resp = net.send("cmd=LIST");
-        model.setData(parseRooms(resp));
+        // gửi kèm token để server gia hạn phiên trong lúc chỉ ngồi ở sảnh
+        String list = net.token == null ? "cmd=LIST" : "cmd=LIST;token=" + net.token;
+        String resp = net.send(lobbyVersion < 0 ? list : list + ";since=" + lobbyVersion);
+        if (!resp.startsWith("OK")) { lobbyVersion = -1; return; }
+        if (has(resp, "unchanged")) return;
+        if (has(resp, "rooms")) {
+            // cả danh sách (lần đầu, server không còn giữ delta tới version cũ, hoặc server cũ không có version)
+            lobbyRows.clear();
+            putRows(kv(resp, "rooms"));
+        } else {
+            for (String id : kv(resp, "removed").split("\\|")) lobbyRows.remove(id);
+            putRows(kv(resp, "added"));
+            putRows(kv(resp, "updated"));
+        }
+        try { lobbyVersion = Long.parseLong(kv(resp, "version")); } catch (NumberFormatException e) { lobbyVersion = -1; }
+        model.setData(parseRooms(lobbyRows.values()));
+    }
+    private void putRows(String rows) {
+        for (String r : rows.split("\\|")) {
+            int c = r.indexOf(',');
+            if (c > 0) lobbyRows.put(r.substring(0, c), r);
+        }
     }
     private void createRoom() {
         String resp = net.send("cmd=CREATE;token=" + net.token);
@@ -261,12 +288,10 @@ public class LobbyView extends JFrame {
     }
 
     // ===== Parse helpers =====
-    private static List<RoomRow> parseRooms(String resp) {
-        String rooms = kv(resp, "rooms");
+    private static List<RoomRow> parseRooms(Collection<String> rooms) {
         List<RoomRow> list = new ArrayList<>();
-        if (rooms == null) return list;
         int seq = 1;
-        for (String r : rooms.split("\\|")) {
+        for (String r : rooms) {
             if (r.isBlank()) continue;
             String[] p = r.split(",");
             if (p.length < 4) continue;
@@ -278,6 +303,10 @@ public class LobbyView extends JFrame {
         }
         return list;
     }
+    private static boolean has(String line, String key) {
+        for (String part : line.split("[ ;]")) if (part.startsWith(key + "=")) return true;
+        return false;
+    }
     private static String kv(String line, String key) {
         for (String part : line.split("[ ;]")) {
             if (part.startsWith(key + "=")) return part.substring((key + "=").length()).replaceAll(";$", "");